@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.more.appenders.encoder.FastJsonEncoder;
+import ch.qos.logback.more.appenders.marker.MapMarker;
+
+/**
+ * Events and encoders shared by the benchmarks.
+ */
+final class BenchmarkEvents {
+    static final String JSON_PATTERN = "{\n"
+            + "    \"time\": \"%date{yyyy-MM-dd'T'HH:mm:ss.SSS'Z',UTC}\",\n"
+            + "    \"level\": \"%level\",\n"
+            + "    \"logger\": \"%logger\",\n"
+            + "    \"thread\": \"%thread\",\n"
+            + "    \"message\": \"%msg\"\n"
+            + "}";
+
+    static final String PLAIN_MESSAGE = "Order 4711 has been shipped to the customer";
+
+    // Quotes, backslashes and control characters, as in a logged JSON document or a stack trace.
+    static final String ESCAPE_HEAVY_MESSAGE = "{\"request\":{\"path\":\"C:\\\\logs\\\\app\",\"query\":\"a=\\\"b\\\"\"},"
+            + "\"trace\":\"at com.example.Service.run(Service.java:42)\n\tat java.lang.Thread.run(Thread.java:748)\r\n\"}"
+            + "\u0000\u0007\u001b[0m";
+
+    private static final LoggerContext CONTEXT = new LoggerContext();
+
+    private BenchmarkEvents() {
+    }
+
+    static LoggerContext context() {
+        return CONTEXT;
+    }
+
+    static LoggingEvent event(String message) {
+        return event(message, new HashMap<String, String>());
+    }
+
+    private static LoggingEvent event(String message, Map<String, String> mdc) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerContextRemoteView(CONTEXT.getLoggerContextRemoteView());
+        event.setLoggerName("com.example.order.OrderService");
+        event.setThreadName("http-nio-8080-exec-1");
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        event.setTimeStamp(1600000000000L);
+        event.setMDCPropertyMap(mdc);
+        return event;
+    }
+
+    /**
+     * @return an event with MDC properties, a map marker and a throwable
+     */
+    static LoggingEvent richEvent() {
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("requestId", "6f1c2a9e-8d3b-4c55-a1f0-0b7e2d9c4e11");
+        mdc.put("userId", "42");
+        mdc.put("tenant", "example");
+        LoggingEvent event = event(PLAIN_MESSAGE, mdc);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("orderId", 4711);
+        map.put("amount", 129.95d);
+        map.put("currency", "EUR");
+        event.setMarker(new MapMarker("ORDER", map));
+        event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("Shipment failed",
+                new IOException("Connection reset"))));
+        return event;
+    }
+
+    static FastJsonEncoder fastJsonEncoder(boolean compressSpace) {
+        FastJsonEncoder encoder = new FastJsonEncoder();
+        encoder.setCompressSpace(compressSpace);
+        encoder.setPattern(JSON_PATTERN);
+        encoder.setContext(CONTEXT);
+        encoder.start();
+        return encoder;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.encoder.CborEncoder;
+import ch.qos.logback.more.appenders.encoder.FastJsonEncoder;
+import ch.qos.logback.more.appenders.encoder.StructuredJsonEncoder;
+
+/**
+ * Encoding of a single event. Run with {@code -prof gc} to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+
+    @Param({"plain", "escapeHeavy"})
+    public String message;
+
+    private FastJsonEncoder fastJsonEncoder;
+    private FastJsonEncoder compressSpaceEncoder;
+    private StructuredJsonEncoder structuredJsonEncoder;
+    private CborEncoder cborEncoder;
+    private LoggingEvent event;
+    private String text;
+    private StringBuilder replaceBuffer;
+    private ByteBuffer byteBuffer;
+
+    @Setup
+    public void setup() {
+        fastJsonEncoder = BenchmarkEvents.fastJsonEncoder(false);
+        compressSpaceEncoder = BenchmarkEvents.fastJsonEncoder(true);
+        structuredJsonEncoder = new StructuredJsonEncoder();
+        structuredJsonEncoder.setContext(BenchmarkEvents.context());
+        structuredJsonEncoder.start();
+        cborEncoder = new CborEncoder();
+        cborEncoder.setContext(BenchmarkEvents.context());
+        cborEncoder.start();
+        text = "escapeHeavy".equals(message) ? BenchmarkEvents.ESCAPE_HEAVY_MESSAGE : BenchmarkEvents.PLAIN_MESSAGE;
+        event = BenchmarkEvents.event(text);
+        replaceBuffer = new StringBuilder(256);
+        byteBuffer = ByteBuffer.allocate(1024);
+    }
+
+    @Benchmark
+    public byte[] fastJsonEncode() {
+        return fastJsonEncoder.encode(event);
+    }
+
+    @Benchmark
+    public byte[] fastJsonEncodeCompressSpace() {
+        return compressSpaceEncoder.encode(event);
+    }
+
+    @Benchmark
+    public ByteBuffer fastJsonEncodeTo() {
+        byteBuffer = fastJsonEncoder.encodeTo(event, byteBuffer);
+        return byteBuffer;
+    }
+
+    @Benchmark
+    public StringBuilder fastJsonReplace() {
+        replaceBuffer.setLength(0);
+        replaceBuffer.append(text);
+        fastJsonEncoder.replace(replaceBuffer, 0, replaceBuffer.length());
+        return replaceBuffer;
+    }
+
+    @Benchmark
+    public byte[] structuredJsonEncode() {
+        return structuredJsonEncoder.encode(event);
+    }
+
+    @Benchmark
+    public byte[] cborEncode() {
+        return cborEncoder.encode(event);
+    }
+}
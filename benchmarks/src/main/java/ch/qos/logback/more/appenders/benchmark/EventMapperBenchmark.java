@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.BenchmarkSupport;
+import ch.qos.logback.more.appenders.CloudWatchLogbackAppender;
+import ch.qos.logback.more.appenders.CloudWatchLogbackAppenderV2;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+import ch.qos.logback.more.appenders.KinesisStreamLogbackAppender;
+import ch.qos.logback.more.appenders.KinesisStreamLogbackAppenderV2;
+
+/**
+ * Mapping of an event to a CloudWatch log event or a Kinesis record, which the appenders do for
+ * every appended event. Run with {@code -prof gc} to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EventMapperBenchmark {
+
+    private EventMapper<ILoggingEvent, ?> cloudWatchMapper;
+    private EventMapper<ILoggingEvent, ?> cloudWatchV2Mapper;
+    private EventMapper<ILoggingEvent, ?> kinesisMapper;
+    private EventMapper<ILoggingEvent, ?> kinesisV2Mapper;
+    private LoggingEvent event;
+
+    @Setup
+    public void setup() {
+        CloudWatchLogbackAppender<ILoggingEvent> cloudWatch = new CloudWatchLogbackAppender<ILoggingEvent>();
+        cloudWatch.setEncoder(BenchmarkEvents.fastJsonEncoder(true));
+        cloudWatchMapper = BenchmarkSupport.eventMapper(cloudWatch);
+
+        CloudWatchLogbackAppenderV2<ILoggingEvent> cloudWatchV2 = new CloudWatchLogbackAppenderV2<ILoggingEvent>();
+        cloudWatchV2.setEncoder(BenchmarkEvents.fastJsonEncoder(true));
+        cloudWatchV2Mapper = BenchmarkSupport.eventMapper(cloudWatchV2);
+
+        KinesisStreamLogbackAppender kinesis = new KinesisStreamLogbackAppender();
+        kinesis.setEncoder(BenchmarkEvents.fastJsonEncoder(true));
+        kinesisMapper = BenchmarkSupport.eventMapper(kinesis);
+
+        KinesisStreamLogbackAppenderV2 kinesisV2 = new KinesisStreamLogbackAppenderV2();
+        kinesisV2.setEncoder(BenchmarkEvents.fastJsonEncoder(true));
+        kinesisV2Mapper = BenchmarkSupport.eventMapper(kinesisV2);
+
+        event = BenchmarkEvents.event(BenchmarkEvents.PLAIN_MESSAGE);
+    }
+
+    @Benchmark
+    public Object cloudWatch() {
+        return cloudWatchMapper.map(event);
+    }
+
+    @Benchmark
+    public Object cloudWatchV2() {
+        return cloudWatchV2Mapper.map(event);
+    }
+
+    @Benchmark
+    public Object kinesis() {
+        return kinesisMapper.map(event);
+    }
+
+    @Benchmark
+    public Object kinesisV2() {
+        return kinesisV2Mapper.map(event);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.benchmark;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.BenchmarkSupport;
+import ch.qos.logback.more.appenders.FluentdAppenderBase;
+
+/**
+ * Construction of the Fluentd record of an event with MDC properties, a map marker and a throwable.
+ * Run with {@code -prof gc} to see the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FluentdAppenderBenchmark {
+
+    @Param({"false", "true"})
+    public boolean flattenMapMarker;
+
+    @Param({"0", "60000"})
+    public long stackTraceDedupWindow;
+
+    private FluentdAppenderBase<ILoggingEvent> appender;
+    private LoggingEvent event;
+
+    @Setup
+    public void setup() {
+        appender = new FluentdAppenderBase<ILoggingEvent>() {
+            @Override
+            protected void append(ILoggingEvent event) {
+            }
+        };
+        appender.setContext(BenchmarkEvents.context());
+        appender.setEncoder(BenchmarkEvents.fastJsonEncoder(true));
+        appender.setFlattenMapMarker(flattenMapMarker);
+        appender.setStackTraceDedupWindow(stackTraceDedupWindow);
+        FluentdAppenderBase.Field field = new FluentdAppenderBase.Field();
+        field.setKey("service");
+        field.setValue("order");
+        appender.addAdditionalField(field);
+        appender.start();
+        event = BenchmarkEvents.richEvent();
+    }
+
+    @Benchmark
+    public Map<String, Object> createData() {
+        return BenchmarkSupport.createData(appender, event);
+    }
+
+    @Benchmark
+    public int packRecord() throws IOException {
+        return BenchmarkSupport.packRecord(appender, event);
+    }
+}
@@ -3,9 +3,13 @@ open module org.slf4j {
   requires static logback.core;
   requires static logback.classic;
   requires static logback.access;
+  requires static com.fasterxml.jackson.core;
+  requires static com.fasterxml.jackson.dataformat.cbor;
   requires static fluent.logger;
   requires static fluency.core;
   requires static fluency.fluentd;
+  requires static msgpack.core;
+  requires static jackson.dataformat.msgpack;
   requires static aws.java.sdk.core;
   requires static aws.java.sdk.logs;
   requires static aws.java.sdk.kinesis;
@@ -14,6 +14,8 @@
 package ch.qos.logback.more.appenders;
 
 import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
+import ch.qos.logback.more.appenders.IntervalEmitter.OverflowPolicy;
 import software.amazon.awssdk.auth.credentials.*;
 
 import java.util.Properties;
@@ -24,6 +26,72 @@ public abstract class AwsAppenderV2<E> extends AppenderBase<E> {
     protected AwsConfig config;
     protected AwsCredentialsProvider credentialsProvider;
     protected AwsCredentials credentials;
+    private int bufferCapacity = IntervalEmitter.DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private long blockTimeout = 1000;
+    private boolean asyncEmit;
+    private int maxBatchEvents;
+    private long maxBatchBytes;
+    private String spoolDir;
+    private int spoolHighWaterMark = 10000;
+    private long maxSpoolSize = 1024L * 1024 * 1024;
+    private IntervalEmitter<E, ?> intervalEmitter;
+
+    public void setBufferCapacity(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public void setAsyncEmit(boolean asyncEmit) {
+        this.asyncEmit = asyncEmit;
+    }
+
+    public void setMaxBatchEvents(int maxBatchEvents) {
+        this.maxBatchEvents = maxBatchEvents;
+    }
+
+    public void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    public void setSpoolHighWaterMark(int spoolHighWaterMark) {
+        this.spoolHighWaterMark = spoolHighWaterMark;
+    }
+
+    public void setMaxSpoolSize(long maxSpoolSize) {
+        this.maxSpoolSize = maxSpoolSize;
+    }
+
+    /**
+     * @return the number of events dropped so far because the buffer was full
+     */
+    public long getDroppedEvents() {
+        return intervalEmitter != null ? intervalEmitter.getDroppedEvents() : 0;
+    }
+
+    protected <R> void configureEmitter(IntervalEmitter<E, R> emitter, EventSerializer<R> serializer) {
+        emitter.setCapacity(bufferCapacity);
+        emitter.setOverflowPolicy(overflowPolicy);
+        emitter.setBlockTimeout(blockTimeout);
+        emitter.setAsyncEmit(asyncEmit);
+        emitter.setMaxBatchEvents(maxBatchEvents);
+        emitter.setMaxBatchBytes(maxBatchBytes);
+        emitter.setSpool(spoolDir, getName() != null ? getName() : getClass().getSimpleName(), serializer,
+                spoolHighWaterMark, maxSpoolSize);
+        emitter.setOwner(this);
+        this.intervalEmitter = emitter;
+    }
 
     @Override
     public void start() {
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.io.IOException;
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+
+/**
+ * Entry points for the JMH benchmarks in the benchmarks module, which measure the internals of the
+ * appenders from another package. Not a part of the API, it may change in any release.
+ */
+public final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    public static <E> EventMapper<E, ?> eventMapper(CloudWatchLogbackAppender<E> appender) {
+        return appender.newEventMapper();
+    }
+
+    public static <E> EventMapper<E, ?> eventMapper(CloudWatchLogbackAppenderV2<E> appender) {
+        return appender.newEventMapper();
+    }
+
+    public static EventMapper<ILoggingEvent, ?> eventMapper(KinesisStreamLogbackAppender appender) {
+        return appender.newEventMapper();
+    }
+
+    public static EventMapper<ILoggingEvent, ?> eventMapper(KinesisStreamLogbackAppenderV2 appender) {
+        return appender.newEventMapper();
+    }
+
+    /**
+     * @return the record which the Fluentd appenders pass to the logger
+     */
+    public static <E> Map<String, Object> createData(FluentdAppenderBase<E> appender, E event) {
+        return appender.createData(event);
+    }
+
+    /**
+     * Pack the record of the event to MessagePack as the Fluency appender does with direct serialization.
+     *
+     * @return the size of the packed record in bytes
+     */
+    public static <E> int packRecord(FluentdAppenderBase<E> appender, E event) throws IOException {
+        RecordPacker packer = RecordPacker.get();
+        appender.putData(event, packer.fields(), true);
+        if (!packer.pack(FluentdAppenderBase.LOW_CARDINALITY_FIELDS)) {
+            throw new IllegalStateException("The record can not be packed directly.");
+        }
+        return packer.size();
+    }
+}
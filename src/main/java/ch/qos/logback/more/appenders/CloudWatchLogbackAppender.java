@@ -13,16 +13,25 @@
  */
 package ch.qos.logback.more.appenders;
 
+import ch.qos.logback.access.spi.IAccessEvent;
+import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.encoder.EchoEncoder;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
 import ch.qos.logback.more.appenders.IntervalEmitter.IntervalAppender;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.services.logs.AWSLogs;
 import com.amazonaws.services.logs.AWSLogsClientBuilder;
 import com.amazonaws.services.logs.model.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 
@@ -34,8 +43,13 @@ import java.util.UUID;
  * @param <E>
  */
 public class CloudWatchLogbackAppender<E> extends AwsAppender<E> {
+    // The limits of a PutLogEvents request.
+    private static final int MAX_BATCH_BYTES = 1048576;
+    private static final int MAX_BATCH_EVENTS = 10000;
+    private static final long MAX_BATCH_SPAN = 24 * 60 * 60 * 1000;
+    private static final int EVENT_OVERHEAD = 26;
 
-    private IntervalEmitter<E, InputLogEvent> emitter;
+    private IntervalEmitter<E, SizedLogEvent> emitter;
     private AWSLogs awsLogs;
     private String logGroupName;
     private StreamName logStreamName;
@@ -76,13 +90,20 @@ public class CloudWatchLogbackAppender<E> extends AwsAppender<E> {
         this.encoder = encoder;
     }
 
+    // For testing
+    void setAwsLogs(AWSLogs awsLogs) {
+        this.awsLogs = awsLogs;
+    }
+
     @Override
     public void start() {
         if (logGroupName == null || logGroupName.length() == 0 || logStreamName == null) {
             throw new IllegalArgumentException("logGroupName and logStreamName must be defined.");
         }
-        this.emitter = new IntervalEmitter<E, InputLogEvent>(emitInterval,
+        this.emitter = new IntervalEmitter<E, SizedLogEvent>(emitInterval,
                 new CloudWatchEventMapper(), new CloudWatchIntervalAppender());
+        configureEmitter(emitter, new CloudWatchEventSerializer());
+        emitter.start();
         super.start();
     }
 
@@ -149,32 +170,92 @@ public class CloudWatchLogbackAppender<E> extends AwsAppender<E> {
         }
     }
 
-    private final class CloudWatchEventMapper implements EventMapper<E, InputLogEvent> {
+    /**
+     * Log event with the size counted by CloudWatch: the UTF-8 length of the message plus 26 bytes.
+     */
+    static final class SizedLogEvent {
+        private final InputLogEvent event;
+        private final int size;
+
+        SizedLogEvent(InputLogEvent event, int size) {
+            this.event = event;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<SizedLogEvent> CHRONOLOGICAL = new Comparator<SizedLogEvent>() {
+        @Override
+        public int compare(SizedLogEvent o1, SizedLogEvent o2) {
+            return Long.compare(o1.event.getTimestamp(), o2.event.getTimestamp());
+        }
+    };
+
+    // For testing
+    EventMapper<E, SizedLogEvent> newEventMapper() {
+        return new CloudWatchEventMapper();
+    }
+
+    private final class CloudWatchEventMapper implements EventMapper<E, SizedLogEvent> {
         @Override
-        public InputLogEvent map(E event) {
+        public SizedLogEvent map(E event) {
             InputLogEvent logEvent = new InputLogEvent();
-            logEvent.setTimestamp(System.currentTimeMillis());
-            byte[] messageBytes = encoder.encode(event);
-            String message = new String(messageBytes);
-            if (messageBytes.length >= (1048576 - 26)) {
+            logEvent.setTimestamp(timestampOf(event));
+            String message = Encoders.toUtf8String(encoder, event);
+            int size = Utf8.length(message);
+            if (size >= (MAX_BATCH_BYTES - EVENT_OVERHEAD)) {
                 // The maximum batch size is 1,048,576 bytes. This size is calculated as the sum of all event messages in UTF-8, plus 26 bytes for each log event.
                 logEvent.setMessage(message.substring(0, 512) + "...(Omitted)");
                 addWarn("Could not send all message to CloudWatch because of the message size limit(<= 1,048,576 bytes). original message = " + message);
+                return new SizedLogEvent(logEvent, Utf8.length(logEvent.getMessage()) + EVENT_OVERHEAD);
+            }
+            logEvent.setMessage(message);
+            return new SizedLogEvent(logEvent, size + EVENT_OVERHEAD);
+        }
+
+        @Override
+        public int sizeOf(SizedLogEvent event) {
+            return event.size;
+        }
+
+        private long timestampOf(E event) {
+            if (event instanceof ILoggingEvent) {
+                return ((ILoggingEvent) event).getTimeStamp();
+            } else if (event instanceof IAccessEvent) {
+                return ((IAccessEvent) event).getTimeStamp();
             } else {
-                logEvent.setMessage(message);
+                return System.currentTimeMillis();
             }
-            return logEvent;
         }
     }
 
-    private final class CloudWatchIntervalAppender implements IntervalAppender<InputLogEvent> {
+    private static final class CloudWatchEventSerializer implements EventSerializer<SizedLogEvent> {
+        @Override
+        public void serialize(SizedLogEvent event, DataOutput out) throws IOException {
+            byte[] message = event.event.getMessage().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(event.event.getTimestamp());
+            out.writeInt(message.length);
+            out.write(message);
+        }
+
+        @Override
+        public SizedLogEvent deserialize(DataInput in) throws IOException {
+            long timestamp = in.readLong();
+            byte[] message = new byte[in.readInt()];
+            in.readFully(message);
+            return new SizedLogEvent(
+                    new InputLogEvent().withTimestamp(timestamp).withMessage(new String(message, StandardCharsets.UTF_8)),
+                    message.length + EVENT_OVERHEAD);
+        }
+    }
+
+    final class CloudWatchIntervalAppender implements IntervalAppender<SizedLogEvent> {
         private String sequenceToken;
         private boolean initialized = false;
         private boolean switchingStream = false;
         private String currentStreamName = logStreamName.get(Collections.<InputLogEvent>emptyList());
 
         @Override
-        public boolean append(List<InputLogEvent> events) {
+        public boolean append(List<SizedLogEvent> sizedEvents) {
             if (!initialized) {
                 ensureLogGroup();
                 initialized = true;
@@ -182,6 +263,12 @@ public class CloudWatchLogbackAppender<E> extends AwsAppender<E> {
             if (switchingStream) {
                 return false;
             }
+            // The events of a PutLogEvents request must be in chronological order.
+            Collections.sort(sizedEvents, CHRONOLOGICAL);
+            List<InputLogEvent> events = new ArrayList<InputLogEvent>(sizedEvents.size());
+            for (SizedLogEvent sizedEvent : sizedEvents) {
+                events.add(sizedEvent.event);
+            }
             String streamName = logStreamName.get(events);
             if (!streamName.equals(currentStreamName)) {
                 if (switchingStream) {
@@ -192,44 +279,63 @@ public class CloudWatchLogbackAppender<E> extends AwsAppender<E> {
                 currentStreamName = streamName;
                 switchingStream = false;
             }
-            try {
-                long size = 0;
-                int putIndex = 0;
-                for (int i = 0, l = events.size(); i < l; i++) {
-                    InputLogEvent event = events.get(i);
-                    String message = event.getMessage();
-                    size += (message.length() * 4); // Approximately 4 times of the length >= bytes size of utf8
-
-                    boolean eventCountLimitExceeded = (i - putIndex) == maxEventCount;
-                    boolean eventSizeLimitExceeded = size > 1048576;
-                    boolean lastRecordReached = i + 1 == l;
-                    if (eventCountLimitExceeded || eventSizeLimitExceeded || lastRecordReached) {
-                        PutLogEventsRequest request;
-
-                        // When (eventCountLimitExceeded || eventSizeLimitExceeded) && lastRecordReached, give precedence
-                        // to the limits (discard the current event)
-                        if (eventCountLimitExceeded || eventSizeLimitExceeded) {
-                            request = new PutLogEventsRequest(logGroupName, streamName, events.subList(putIndex, i));
-                            // Update putIndex before decreasing the event index
-                            putIndex = i;
-                            i -= 1;
-                        } else {
-                            request = new PutLogEventsRequest(logGroupName, streamName, events.subList(putIndex, i + 1));
-                        }
-                        size = 0;
-                        if (sequenceToken != null) {
-                            request.withSequenceToken(sequenceToken);
-                        }
-                        PutLogEventsResult result = awsLogs.putLogEvents(request);
-                        sequenceToken = result.getNextSequenceToken();
-                    }
+            int sent = 0;
+            for (List<SizedLogEvent> batch : split(sizedEvents)) {
+                PutLogEventsRequest request = new PutLogEventsRequest(logGroupName, streamName,
+                        events.subList(sent, sent + batch.size()));
+                if (sequenceToken != null) {
+                    request.withSequenceToken(sequenceToken);
+                }
+                try {
+                    PutLogEventsResult result = awsLogs.putLogEvents(request);
+                    sequenceToken = result.getNextSequenceToken();
+                } catch (InvalidSequenceTokenException e) {
+                    sequenceToken = e.getExpectedSequenceToken();
+                    return retryLater(sizedEvents, sent, e);
+                } catch (RuntimeException e) {
+                    sequenceToken = null;
+                    return retryLater(sizedEvents, sent, e);
                 }
-            } catch (RuntimeException e) {
-                sequenceToken = null;
-                addWarn("Skip sending logs to CloudWatch", e);
+                sent += batch.size();
             }
             return true;
         }
+
+        private boolean retryLater(List<SizedLogEvent> sizedEvents, int sent, RuntimeException e) {
+            addWarn("Could not send " + (sizedEvents.size() - sent) + " logs to CloudWatch. They will be retried at the next emission.", e);
+            // Leave the events which have not been sent to the emitter, which retries or spools them.
+            sizedEvents.subList(0, sent).clear();
+            return false;
+        }
+    }
+
+    /**
+     * Split the chronologically sorted events into the batches within the limits of a PutLogEvents request.
+     */
+    List<List<SizedLogEvent>> split(List<SizedLogEvent> sizedEvents) {
+        List<List<SizedLogEvent>> batches = new ArrayList<List<SizedLogEvent>>();
+        int maxEvents = Math.min(maxEventCount, MAX_BATCH_EVENTS);
+        long size = 0;
+        long firstTimestamp = 0;
+        int putIndex = 0;
+        for (int i = 0, l = sizedEvents.size(); i < l; i++) {
+            SizedLogEvent event = sizedEvents.get(i);
+            long timestamp = event.event.getTimestamp();
+            if (i > putIndex && (i - putIndex >= maxEvents || size + event.size > MAX_BATCH_BYTES
+                    || timestamp - firstTimestamp > MAX_BATCH_SPAN)) {
+                batches.add(sizedEvents.subList(putIndex, i));
+                putIndex = i;
+                size = 0;
+            }
+            if (i == putIndex) {
+                firstTimestamp = timestamp;
+            }
+            size += event.size;
+        }
+        if (putIndex < sizedEvents.size()) {
+            batches.add(sizedEvents.subList(putIndex, sizedEvents.size()));
+        }
+        return batches;
     }
 
     public interface StreamName {
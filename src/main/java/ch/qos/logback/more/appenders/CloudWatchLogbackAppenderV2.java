@@ -13,19 +13,43 @@
  */
 package ch.qos.logback.more.appenders;
 
+import ch.qos.logback.access.spi.IAccessEvent;
+import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.encoder.EchoEncoder;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
 import ch.qos.logback.more.appenders.IntervalEmitter.IntervalAppender;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClient;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClientBuilder;
 import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
 import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClientBuilder;
 import software.amazon.awssdk.services.cloudwatchlogs.model.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 /**
  * Appender for CloudWatch. It appends logs for every emitInterval.
@@ -35,13 +59,26 @@ import java.util.UUID;
  * @param <E>
  */
 public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
+    // The limits of a PutLogEvents request.
+    private static final int MAX_BATCH_BYTES = 1048576;
+    private static final int MAX_BATCH_EVENTS = 10000;
+    private static final long MAX_BATCH_SPAN = 24 * 60 * 60 * 1000;
+    private static final int EVENT_OVERHEAD = 26;
+    private static final long SHUTDOWN_TIMEOUT = 10000;
 
-    private IntervalEmitter<E, InputLogEvent> emitter;
+    private IntervalEmitter<E, SizedLogEvent> emitter;
     private CloudWatchLogsClient awsLogs;
+    private CloudWatchLogsAsyncClient awsLogsAsync;
     private String logGroupName;
     private StreamName logStreamName;
     private boolean createLogDestination;
     private int maxEventCount = Integer.MAX_VALUE;
+    private int logStreamCount = 1;
+    private ExecutorService uploadExecutor;
+    private boolean asyncClient;
+    private int maxInFlightRequests = 4;
+    private Semaphore inFlightRequests;
+    private volatile boolean stopping;
     private long emitInterval = 10000;
     private Encoder<E> encoder = new EchoEncoder<E>();
 
@@ -69,6 +106,34 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
         this.maxEventCount = maxEventCount;
     }
 
+    /**
+     * Shard the logs across the log streams named {@code <logStreamName>-0} to {@code <logStreamName>-(count - 1)}
+     * and upload them concurrently. The batches are assigned to the log streams in turn, also across the emissions.
+     *
+     * @param logStreamCount the number of log streams (Default: 1 = no sharding)
+     */
+    public void setLogStreamCount(int logStreamCount) {
+        this.logStreamCount = logStreamCount;
+    }
+
+    /**
+     * Put the logs with {@link CloudWatchLogsAsyncClient}. The emitter does not wait for the responses, so the next
+     * batch is prepared while the previous one is in flight. The failed batches are retried at the next emission.
+     *
+     * @param asyncClient true to use the async client (Default: false)
+     */
+    public void setAsyncClient(boolean asyncClient) {
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * @param maxInFlightRequests the max number of outstanding requests of the async client. The batches over the
+     *            limit wait for the next emission. (Default: 4)
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
     public void setEmitInterval(long emitInterval) {
         this.emitInterval = emitInterval;
     }
@@ -77,19 +142,55 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
         this.encoder = encoder;
     }
 
+    // For testing
+    void setAwsLogs(CloudWatchLogsClient awsLogs) {
+        this.awsLogs = awsLogs;
+    }
+
+    // For testing
+    void setAwsLogsAsync(CloudWatchLogsAsyncClient awsLogsAsync) {
+        this.awsLogsAsync = awsLogsAsync;
+    }
+
     @Override
     public void start() {
         if (logGroupName == null || logGroupName.length() == 0 || logStreamName == null) {
             throw new IllegalArgumentException("logGroupName and logStreamName must be defined.");
         }
-        this.emitter = new IntervalEmitter<E, InputLogEvent>(emitInterval,
+        if (logStreamCount < 1) {
+            throw new IllegalArgumentException("logStreamCount must be greater than 0.");
+        }
+        if (asyncClient) {
+            if (maxInFlightRequests < 1) {
+                throw new IllegalArgumentException("maxInFlightRequests must be greater than 0.");
+            }
+            this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        } else if (logStreamCount > 1) {
+            this.uploadExecutor = Executors.newFixedThreadPool(logStreamCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "logback-more-appenders-cloudwatch");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+        }
+        this.emitter = new IntervalEmitter<E, SizedLogEvent>(emitInterval,
                 new CloudWatchEventMapper(), new CloudWatchIntervalAppender());
+        configureEmitter(emitter, new CloudWatchEventSerializer());
+        emitter.start();
         super.start();
     }
 
     @Override
     public void stop() {
+        stopping = true;
         try {
+            if (inFlightRequests != null) {
+                // The events of the failed requests go back to the emitter, and the emissions from now on wait for
+                // their requests, so that the emitter sends them before it stops.
+                awaitInFlightRequests();
+            }
             emitter.emitForShutdown(10000, 10);
         } catch (Exception e) {
             // Ignore
@@ -97,8 +198,15 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
         try {
             super.stop();
         } finally {
+            if (uploadExecutor != null) {
+                uploadExecutor.shutdown();
+            }
             try {
-                awsLogs.close();
+                if (awsLogsAsync != null) {
+                    awsLogsAsync.close();
+                } else {
+                    awsLogs.close();
+                }
             } catch (Exception e) {
                 // pass
             }
@@ -111,7 +219,16 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
     }
 
     private void ensureLogGroup() {
-        if (this.awsLogs == null) {
+        if (asyncClient && this.awsLogsAsync == null) {
+            CloudWatchLogsAsyncClientBuilder builder = CloudWatchLogsAsyncClient.builder()
+                    .region(Region.of(config.getRegion()));
+            if (credentials != null) {
+                builder.credentialsProvider(StaticCredentialsProvider.create(credentials));
+            } else if (credentialsProvider != null) {
+                builder.credentialsProvider(credentialsProvider);
+            }
+            this.awsLogsAsync = builder.build();
+        } else if (!asyncClient && this.awsLogs == null) {
             CloudWatchLogsClientBuilder builder = CloudWatchLogsClient.builder()
                     .region(Region.of(config.getRegion()));
             if (credentials != null) {
@@ -122,13 +239,19 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
             this.awsLogs = builder.build();
         }
         DescribeLogGroupsRequest request = DescribeLogGroupsRequest.builder().logGroupNamePrefix(logGroupName).limit(1).build();
-        DescribeLogGroupsResponse result = awsLogs.describeLogGroups(request);
+        DescribeLogGroupsResponse result = asyncClient
+                ? awsLogsAsync.describeLogGroups(request).join() : awsLogs.describeLogGroups(request);
         if (result.logGroups().size() == 1
           && result.logGroups().get(0).logGroupName().equals(logGroupName)) {
             return;
         }
         if (createLogDestination) {
-            awsLogs.createLogGroup(CreateLogGroupRequest.builder().logGroupName(logGroupName).build());
+            CreateLogGroupRequest createRequest = CreateLogGroupRequest.builder().logGroupName(logGroupName).build();
+            if (asyncClient) {
+                awsLogsAsync.createLogGroup(createRequest).join();
+            } else {
+                awsLogs.createLogGroup(createRequest);
+            }
         } else {
             throw new IllegalStateException(
                     "The specified log group does not exist: " + logGroupName);
@@ -138,12 +261,19 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
     private String ensureLogStream(String name) {
         DescribeLogStreamsRequest request = DescribeLogStreamsRequest.builder()
                 .logGroupName(logGroupName).logStreamNamePrefix(name).limit(1).build();
-        DescribeLogStreamsResponse result = awsLogs.describeLogStreams(request);
+        DescribeLogStreamsResponse result = asyncClient
+                ? awsLogsAsync.describeLogStreams(request).join() : awsLogs.describeLogStreams(request);
         if (result.logStreams().size() == 1 && result.logStreams().get(0).logStreamName().equals(name)) {
             return result.logStreams().get(0).uploadSequenceToken();
         }
         if (createLogDestination) {
-            awsLogs.createLogStream(CreateLogStreamRequest.builder().logGroupName(logGroupName).logStreamName(name).build());
+            CreateLogStreamRequest createRequest = CreateLogStreamRequest.builder()
+                    .logGroupName(logGroupName).logStreamName(name).build();
+            if (asyncClient) {
+                awsLogsAsync.createLogStream(createRequest).join();
+            } else {
+                awsLogs.createLogStream(createRequest);
+            }
             return null;
         } else {
             throw new IllegalStateException(
@@ -151,32 +281,101 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
         }
     }
 
-    private final class CloudWatchEventMapper implements EventMapper<E, InputLogEvent> {
+    /**
+     * Log event with the size counted by CloudWatch: the UTF-8 length of the message plus 26 bytes.
+     */
+    static final class SizedLogEvent {
+        private final InputLogEvent event;
+        private final int size;
+
+        SizedLogEvent(InputLogEvent event, int size) {
+            this.event = event;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<SizedLogEvent> CHRONOLOGICAL = new Comparator<SizedLogEvent>() {
+        @Override
+        public int compare(SizedLogEvent o1, SizedLogEvent o2) {
+            return Long.compare(o1.event.timestamp(), o2.event.timestamp());
+        }
+    };
+
+    // For testing
+    EventMapper<E, SizedLogEvent> newEventMapper() {
+        return new CloudWatchEventMapper();
+    }
+
+    private final class CloudWatchEventMapper implements EventMapper<E, SizedLogEvent> {
         @Override
-        public InputLogEvent map(E event) {
+        public SizedLogEvent map(E event) {
             InputLogEvent.Builder logEvent = InputLogEvent.builder();
-            logEvent.timestamp(System.currentTimeMillis());
-            byte[] messageBytes = encoder.encode(event);
-            String message = new String(messageBytes);
-            if (messageBytes.length >= (1048576 - 26)) {
+            logEvent.timestamp(timestampOf(event));
+            String message = Encoders.toUtf8String(encoder, event);
+            int size = Utf8.length(message);
+            if (size >= (MAX_BATCH_BYTES - EVENT_OVERHEAD)) {
                 // The maximum batch size is 1,048,576 bytes. This size is calculated as the sum of all event messages in UTF-8, plus 26 bytes for each log event.
-                logEvent.message(message.substring(0, 512) + "...(Omitted)");
+                String omitted = message.substring(0, 512) + "...(Omitted)";
+                logEvent.message(omitted);
                 addWarn("Could not send all message to CloudWatch because of the message size limit(<= 1,048,576 bytes). original message = " + message);
+                return new SizedLogEvent(logEvent.build(), Utf8.length(omitted) + EVENT_OVERHEAD);
+            }
+            logEvent.message(message);
+            return new SizedLogEvent(logEvent.build(), size + EVENT_OVERHEAD);
+        }
+
+        @Override
+        public int sizeOf(SizedLogEvent event) {
+            return event.size;
+        }
+
+        private long timestampOf(E event) {
+            if (event instanceof ILoggingEvent) {
+                return ((ILoggingEvent) event).getTimeStamp();
+            } else if (event instanceof IAccessEvent) {
+                return ((IAccessEvent) event).getTimeStamp();
             } else {
-                logEvent.message(message);
+                return System.currentTimeMillis();
             }
-            return logEvent.build();
         }
     }
 
-    private final class CloudWatchIntervalAppender implements IntervalAppender<InputLogEvent> {
-        private String sequenceToken;
+    private static final class CloudWatchEventSerializer implements EventSerializer<SizedLogEvent> {
+        @Override
+        public void serialize(SizedLogEvent event, DataOutput out) throws IOException {
+            byte[] message = event.event.message().getBytes(StandardCharsets.UTF_8);
+            out.writeLong(event.event.timestamp());
+            out.writeInt(message.length);
+            out.write(message);
+        }
+
+        @Override
+        public SizedLogEvent deserialize(DataInput in) throws IOException {
+            long timestamp = in.readLong();
+            byte[] message = new byte[in.readInt()];
+            in.readFully(message);
+            return new SizedLogEvent(
+                    InputLogEvent.builder().timestamp(timestamp).message(new String(message, StandardCharsets.UTF_8)).build(),
+                    message.length + EVENT_OVERHEAD);
+        }
+    }
+
+    final class CloudWatchIntervalAppender implements IntervalAppender<SizedLogEvent> {
+        private final String[] sequenceTokens = new String[logStreamCount];
+        // The async client chains the requests of each shard on the sequence token of the previous response.
+        private final List<CompletableFuture<String>> nextSequenceTokens =
+                new ArrayList<CompletableFuture<String>>(logStreamCount);
+        // An async request has failed since the last emission. Its events have been put back to the emitter.
+        private volatile boolean asyncFailed;
+        // The shard of the next batch. It keeps rotating across the emissions, so the shards share the load
+        // even if every emission fits in a single batch.
+        private int nextShard;
         private boolean initialized = false;
         private boolean switchingStream = false;
-        private String currentStreamName = logStreamName.get(Collections.<InputLogEvent>emptyList());
+        private String currentStreamName;
 
         @Override
-        public boolean append(List<InputLogEvent> events) {
+        public boolean append(List<SizedLogEvent> sizedEvents) {
             if (!initialized) {
                 ensureLogGroup();
                 initialized = true;
@@ -184,56 +383,269 @@ public class CloudWatchLogbackAppenderV2<E> extends AwsAppenderV2<E> {
             if (switchingStream) {
                 return false;
             }
+            if (asyncFailed) {
+                asyncFailed = false;
+                if (!stopping) {
+                    // Let the emitter pace the retries and spool the events while the destination keeps failing.
+                    return false;
+                }
+            }
+            // The events of a PutLogEvents request must be in chronological order.
+            Collections.sort(sizedEvents, CHRONOLOGICAL);
+            List<InputLogEvent> events = new ArrayList<InputLogEvent>(sizedEvents.size());
+            for (SizedLogEvent sizedEvent : sizedEvents) {
+                events.add(sizedEvent.event);
+            }
             String streamName = logStreamName.get(events);
             if (!streamName.equals(currentStreamName)) {
                 if (switchingStream) {
                     return false;
                 }
                 switchingStream = true;
-                sequenceToken = ensureLogStream(streamName);
+                nextSequenceTokens.clear();
+                for (int shard = 0; shard < logStreamCount; shard++) {
+                    sequenceTokens[shard] = ensureLogStream(shardStreamName(streamName, shard));
+                    nextSequenceTokens.add(CompletableFuture.completedFuture(sequenceTokens[shard]));
+                }
                 currentStreamName = streamName;
                 switchingStream = false;
             }
-            try {
-                long size = 0;
-                int putIndex = 0;
-                for (int i = 0, l = events.size(); i < l; i++) {
-                    InputLogEvent event = events.get(i);
-                    String message = event.message();
-                    size += (message.length() * 4); // Approximately 4 times of the length >= bytes size of utf8
-
-                    boolean eventCountLimitExceeded = (i - putIndex) == maxEventCount;
-                    boolean eventSizeLimitExceeded = size > 1048576;
-                    boolean lastRecordReached = i + 1 == l;
-                    if (eventCountLimitExceeded || eventSizeLimitExceeded || lastRecordReached) {
-                        PutLogEventsRequest.Builder request;
-
-                        // When (eventCountLimitExceeded || eventSizeLimitExceeded) && lastRecordReached, give precedence
-                        // to the limits (discard the current event)
-                        if (eventCountLimitExceeded || eventSizeLimitExceeded) {
-                            request = PutLogEventsRequest.builder().logGroupName(logGroupName)
-                                .logStreamName(streamName).logEvents(events.subList(putIndex, i));
-                            // Update putIndex before decreasing the event index
-                            putIndex = i;
-                            i -= 1;
-                        } else {
-                            request = PutLogEventsRequest.builder().logGroupName(logGroupName)
-                                .logStreamName(streamName).logEvents(events.subList(putIndex, i + 1));
-                        }
-                        size = 0;
+            List<List<SizedLogEvent>> batches = split(sizedEvents);
+            List<List<SizedLogEvent>> unsent;
+            if (asyncClient) {
+                unsent = putLogEventsAsync(streamName, batches);
+                if (stopping) {
+                    // The failed requests are put back to the emitter, which emits them again before it stops.
+                    awaitInFlightRequests();
+                }
+            } else {
+                unsent = putLogEvents(streamName, batches);
+            }
+            if (unsent.isEmpty()) {
+                return true;
+            }
+            // Leave the events which have not been sent to the emitter, which retries or spools them.
+            List<SizedLogEvent> rest = new ArrayList<SizedLogEvent>();
+            for (List<SizedLogEvent> batch : unsent) {
+                rest.addAll(batch);
+            }
+            sizedEvents.clear();
+            sizedEvents.addAll(rest);
+            return false;
+        }
+
+        private int nextShard() {
+            int shard = nextShard;
+            nextShard = (shard + 1) % logStreamCount;
+            return shard;
+        }
+
+        private String shardStreamName(String streamName, int shard) {
+            return logStreamCount == 1 ? streamName : streamName + "-" + shard;
+        }
+
+        /**
+         * @return the batches which have not been sent
+         */
+        private List<List<SizedLogEvent>> putLogEvents(final String streamName, List<List<SizedLogEvent>> batches) {
+            // Assign the batches to the shards in turn, each shard puts its batches in order.
+            List<List<List<SizedLogEvent>>> shardBatches = new ArrayList<List<List<SizedLogEvent>>>(logStreamCount);
+            for (int shard = 0; shard < logStreamCount; shard++) {
+                shardBatches.add(new ArrayList<List<SizedLogEvent>>());
+            }
+            int usedShards = 0;
+            for (List<SizedLogEvent> batch : batches) {
+                List<List<SizedLogEvent>> assigned = shardBatches.get(nextShard());
+                if (assigned.isEmpty()) {
+                    usedShards++;
+                }
+                assigned.add(batch);
+            }
+            List<List<SizedLogEvent>> unsent = new ArrayList<List<SizedLogEvent>>();
+            if (usedShards <= 1 || uploadExecutor == null) {
+                for (int shard = 0; shard < logStreamCount; shard++) {
+                    unsent.addAll(putLogEvents(shardStreamName(streamName, shard), shard, shardBatches.get(shard)));
+                }
+                return unsent;
+            }
+            // Each shard keeps its own sequence token, so the shards can be uploaded concurrently.
+            List<Future<List<List<SizedLogEvent>>>> uploads = new ArrayList<Future<List<List<SizedLogEvent>>>>(logStreamCount);
+            for (int shard = 0; shard < logStreamCount; shard++) {
+                final int shardIndex = shard;
+                final List<List<SizedLogEvent>> assigned = shardBatches.get(shard);
+                uploads.add(uploadExecutor.submit(new Callable<List<List<SizedLogEvent>>>() {
+                    @Override
+                    public List<List<SizedLogEvent>> call() {
+                        return putLogEvents(shardStreamName(streamName, shardIndex), shardIndex, assigned);
+                    }
+                }));
+            }
+            for (int shard = 0; shard < logStreamCount; shard++) {
+                try {
+                    unsent.addAll(uploads.get(shard).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    unsent.addAll(shardBatches.get(shard));
+                } catch (ExecutionException e) {
+                    addWarn("Could not send the logs to CloudWatch. They will be retried at the next emission.", e.getCause());
+                    unsent.addAll(shardBatches.get(shard));
+                }
+            }
+            return unsent;
+        }
+
+        /**
+         * Put the batches of the shard in order.
+         *
+         * @return the batches which have not been sent
+         */
+        private List<List<SizedLogEvent>> putLogEvents(String streamName, int shard, List<List<SizedLogEvent>> batches) {
+            for (int i = 0; i < batches.size(); i++) {
+                PutLogEventsRequest.Builder request = PutLogEventsRequest.builder().logGroupName(logGroupName)
+                        .logStreamName(streamName).logEvents(logEventsOf(batches.get(i)));
+                if (sequenceTokens[shard] != null) {
+                    request.sequenceToken(sequenceTokens[shard]);
+                }
+                try {
+                    PutLogEventsResponse result = awsLogs.putLogEvents(request.build());
+                    sequenceTokens[shard] = result.nextSequenceToken();
+                } catch (RuntimeException e) {
+                    sequenceTokens[shard] = expectedSequenceToken(e);
+                    addWarn("Could not send the logs to CloudWatch. They will be retried at the next emission.", e);
+                    return batches.subList(i, batches.size());
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        /**
+         * Send the batches without waiting for the responses. The events of the failed requests are put back to the
+         * emitter.
+         *
+         * @return the batches which have not been sent because of the limit of the outstanding requests
+         */
+        private List<List<SizedLogEvent>> putLogEventsAsync(String streamName, List<List<SizedLogEvent>> batches) {
+            List<List<SizedLogEvent>> unsent = new ArrayList<List<SizedLogEvent>>();
+            for (int i = 0; i < batches.size(); i++) {
+                if (!acquireInFlightRequest()) {
+                    // Do not hold the emitting thread, the rest waits in the emitter for the next emission.
+                    unsent.addAll(batches.subList(i, batches.size()));
+                    return unsent;
+                }
+                final int shard = nextShard();
+                final String shardStreamName = shardStreamName(streamName, shard);
+                // Copy it, the emitter reuses the list of the events which have not been sent.
+                final List<SizedLogEvent> batch = new ArrayList<SizedLogEvent>(batches.get(i));
+                CompletableFuture<String> next = nextSequenceTokens.get(shard).thenCompose(
+                        new Function<String, CompletionStage<String>>() {
+                    @Override
+                    public CompletionStage<String> apply(String sequenceToken) {
+                        PutLogEventsRequest.Builder request = PutLogEventsRequest.builder().logGroupName(logGroupName)
+                                .logStreamName(shardStreamName).logEvents(logEventsOf(batch));
                         if (sequenceToken != null) {
                             request.sequenceToken(sequenceToken);
                         }
-                        PutLogEventsResponse result = awsLogs.putLogEvents(request.build());
-                        sequenceToken = result.nextSequenceToken();
+                        return awsLogsAsync.putLogEvents(request.build()).thenApply(
+                                new Function<PutLogEventsResponse, String>() {
+                            @Override
+                            public String apply(PutLogEventsResponse result) {
+                                return result.nextSequenceToken();
+                            }
+                        });
                     }
-                }
-            } catch (RuntimeException e) {
-                sequenceToken = null;
-                addWarn("Skip sending logs to CloudWatch", e);
+                }).handle(new BiFunction<String, Throwable, String>() {
+                    @Override
+                    public String apply(String nextSequenceToken, Throwable e) {
+                        if (e != null) {
+                            emitter.requeue(batch);
+                            asyncFailed = true;
+                            addWarn("Could not send the logs to CloudWatch. They will be retried at the next emission.", e);
+                            nextSequenceToken = expectedSequenceToken(e);
+                        }
+                        inFlightRequests.release();
+                        return nextSequenceToken;
+                    }
+                });
+                nextSequenceTokens.set(shard, next);
+            }
+            return unsent;
+        }
+
+        private boolean acquireInFlightRequest() {
+            try {
+                // Wait for the outstanding requests only on shutdown, otherwise leave the pace to the emitter.
+                return stopping ? inFlightRequests.tryAcquire(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)
+                        : inFlightRequests.tryAcquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
-            return true;
         }
+
+    }
+
+    /**
+     * Wait for the outstanding requests of the async client to complete.
+     */
+    private void awaitInFlightRequests() {
+        try {
+            if (inFlightRequests.tryAcquire(maxInFlightRequests, SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                inFlightRequests.release(maxInFlightRequests);
+            } else {
+                addWarn((maxInFlightRequests - inFlightRequests.availablePermits())
+                        + " requests to CloudWatch have been abandoned because they did not complete in "
+                        + SHUTDOWN_TIMEOUT + " ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static List<InputLogEvent> logEventsOf(List<SizedLogEvent> batch) {
+        List<InputLogEvent> events = new ArrayList<InputLogEvent>(batch.size());
+        for (SizedLogEvent event : batch) {
+            events.add(event.event);
+        }
+        return events;
+    }
+
+    /**
+     * @return the sequence token to send the next request with after the failure
+     */
+    private static String expectedSequenceToken(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof InvalidSequenceTokenException ? ((InvalidSequenceTokenException) e).expectedSequenceToken() : null;
+    }
+
+    /**
+     * Split the chronologically sorted events into the batches within the limits of a PutLogEvents request.
+     */
+    List<List<SizedLogEvent>> split(List<SizedLogEvent> sizedEvents) {
+        List<List<SizedLogEvent>> batches = new ArrayList<List<SizedLogEvent>>();
+        int maxEvents = Math.min(maxEventCount, MAX_BATCH_EVENTS);
+        long size = 0;
+        long firstTimestamp = 0;
+        int putIndex = 0;
+        for (int i = 0, l = sizedEvents.size(); i < l; i++) {
+            SizedLogEvent event = sizedEvents.get(i);
+            long timestamp = event.event.timestamp();
+            if (i > putIndex && (i - putIndex >= maxEvents || size + event.size > MAX_BATCH_BYTES
+                    || timestamp - firstTimestamp > MAX_BATCH_SPAN)) {
+                batches.add(sizedEvents.subList(putIndex, i));
+                putIndex = i;
+                size = 0;
+            }
+            if (i == putIndex) {
+                firstTimestamp = timestamp;
+            }
+            size += event.size;
+        }
+        if (putIndex < sizedEvents.size()) {
+            batches.add(sizedEvents.subList(putIndex, sizedEvents.size()));
+        }
+        return batches;
     }
 
     public interface StreamName {
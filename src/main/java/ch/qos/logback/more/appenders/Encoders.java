@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.more.appenders.encoder.ByteBufferEncoder;
+
+/**
+ * Encodes the events with as few copies as the encoder allows.
+ */
+final class Encoders {
+    // Larger buffers are not kept by the thread.
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1024);
+        }
+    };
+
+    private Encoders() {
+    }
+
+    /**
+     * Encode the event into a per-thread buffer.
+     *
+     * @return the buffer holding the encoded event, valid until the next call on the same thread
+     */
+    static <E> ByteBuffer encode(Encoder<E> encoder, E event) {
+        ByteBuffer buffer = BUFFER.get();
+        if (encoder instanceof ByteBufferEncoder) {
+            buffer = ((ByteBufferEncoder<E>) encoder).encodeTo(event, buffer);
+        } else {
+            byte[] bytes = encoder.encode(event);
+            if (buffer.capacity() < bytes.length) {
+                buffer = ByteBuffer.allocate(bytes.length);
+            }
+            buffer.clear();
+            buffer.put(bytes).flip();
+        }
+        if (buffer.capacity() <= MAX_RETAINED_BYTES) {
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the encoded event in a byte array of its own
+     */
+    static <E> byte[] toByteArray(Encoder<E> encoder, E event) {
+        if (!(encoder instanceof ByteBufferEncoder)) {
+            return encoder.encode(event);
+        }
+        ByteBuffer buffer = encode(encoder, event);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encode the event to a String as if the bytes were UTF-8. A layout producing UTF-8 is used as is,
+     * so the text is never encoded and decoded.
+     */
+    static <E> String toUtf8String(Encoder<E> encoder, E event) {
+        if (encoder instanceof LayoutWrappingEncoder) {
+            LayoutWrappingEncoder<E> layoutEncoder = (LayoutWrappingEncoder<E>) encoder;
+            if (layoutEncoder.getLayout() != null
+                    && (layoutEncoder.getCharset() == null || StandardCharsets.UTF_8.equals(layoutEncoder.getCharset()))) {
+                return layoutEncoder.getLayout().doLayout(event);
+            }
+        }
+        byte[] bytes = encoder.encode(event);
+        String message = Utf8.decode(bytes, 0, bytes.length);
+        return message != null ? message : new String(bytes, StandardCharsets.UTF_8);
+    }
+}
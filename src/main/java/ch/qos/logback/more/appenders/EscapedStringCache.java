@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache from the repeated strings of the events, such as the logger names, thread names and
+ * MDC keys, to their escaped or serialized form. The cache is direct-mapped: a string evicts the
+ * string in its slot, so lookups never lock. A slot matches by identity first, then by equality.
+ *
+ * @param <V> escaped form
+ */
+public final class EscapedStringCache<V> {
+    private final AtomicReferenceArray<Entry<V>> entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    public EscapedStringCache(int size) {
+        int slots = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.entries = new AtomicReferenceArray<Entry<V>>(slots);
+        this.mask = slots - 1;
+    }
+
+    /**
+     * @return the escaped form of the key, or null if it is not cached
+     */
+    public V get(Object key) {
+        Entry<V> entry = entries.get(index(key));
+        if (entry != null && (entry.key == key || entry.key.equals(key))) {
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(Object key, V value) {
+        entries.lazySet(index(key), new Entry<V>(key, value));
+    }
+
+    private int index(Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the ratio of the hits to the lookups, 0 if there is no lookup yet
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    private static final class Entry<V> {
+        final Object key;
+        final V value;
+
+        Entry(Object key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
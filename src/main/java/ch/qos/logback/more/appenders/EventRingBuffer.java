@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.more.appenders.IntervalEmitter.OverflowPolicy;
+
+/**
+ * Bounded lock-free ring buffer (Dmitry Vyukov's bounded MPMC queue). Every slot carries a sequence
+ * number, so producers only contend on a single CAS of the tail cursor and never on a monitor.
+ * The consumer side is usually a single emitting thread, but producers may poll as well to
+ * implement {@link OverflowPolicy#DROP_OLDEST}.
+ *
+ * @param <R> record type
+ */
+final class EventRingBuffer<R> {
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<R> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final DropListener<R> dropListener;
+
+    EventRingBuffer(int capacity, OverflowPolicy overflowPolicy, long blockTimeoutMillis,
+            DropListener<R> dropListener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<R>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.overflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_NEWEST;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        this.dropListener = dropListener;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Put the record according to the overflow policy. The drop listener is told about every discarded
+     * record, the given one or the evicted ones.
+     *
+     * @return false if the record has been dropped
+     */
+    boolean offer(R record) {
+        if (tryOffer(record)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    R evicted = poll();
+                    if (evicted != null) {
+                        dropped(evicted);
+                    }
+                } while (!tryOffer(record));
+                return true;
+            case BLOCK:
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                do {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                        dropped(record);
+                        return false;
+                    }
+                    LockSupport.parkNanos(Math.min(remaining, BLOCK_PARK_NANOS));
+                } while (!tryOffer(record));
+                return true;
+            default:
+                dropped(record);
+                return false;
+        }
+    }
+
+    private void dropped(R record) {
+        if (dropListener != null) {
+            dropListener.dropped(record);
+        }
+    }
+
+    /**
+     * Put the record if there is room, regardless of the overflow policy.
+     *
+     * @return false if the buffer is full
+     */
+    boolean tryOffer(R record) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(index, record);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; // Full
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    R poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    R record = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.set(index, pos + capacity);
+                    return record;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null; // Empty
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    int drainTo(Collection<? super R> dest, int maxRecords) {
+        int count = 0;
+        while (count < maxRecords) {
+            R record = poll();
+            if (record == null) {
+                break;
+            }
+            dest.add(record);
+            count++;
+        }
+        return count;
+    }
+
+    int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) Math.min(size, capacity);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    interface DropListener<R> {
+        void dropped(R record);
+    }
+}
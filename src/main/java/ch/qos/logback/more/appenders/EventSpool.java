@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
+
+/**
+ * Append-only on-disk queue of events. Events are written to segment files as
+ * <code>[length][crc32][payload]</code> records, and the read position is saved in a checkpoint
+ * file after every successful emission, so the events which have not been emitted yet are replayed
+ * after a restart. Delivery is at least once: the last batch in flight may be replayed.
+ * <p>
+ * Not thread safe, it is only used by the thread which emits the events.
+ *
+ * @param <R> record type
+ */
+final class EventSpool<R> {
+    static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int HEADER_SIZE = 8;
+    private static final int CHECKPOINT_SIZE = 20;
+
+    private final File dir;
+    private final String prefix;
+    private final EventSerializer<R> serializer;
+    private final long maxSize;
+    // Sequence number -> size of the segment
+    private final TreeMap<Long, Long> segments = new TreeMap<Long, Long>();
+    private final FileChannel checkpoint;
+    private long totalSize;
+
+    private FileChannel writer;
+    private long writeSeq = -1;
+    private long nextSeq;
+
+    private FileChannel reader;
+    private long readerSeq = -1;
+    private long readSeq;
+    private long readPos;
+
+    EventSpool(File dir, String prefix, EventSerializer<R> serializer, long maxSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the spool directory: " + dir);
+        }
+        this.dir = dir;
+        this.prefix = prefix;
+        this.serializer = serializer;
+        this.maxSize = maxSize;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(prefix + ".") && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long seq = Long.parseLong(
+                                name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(seq, file.length());
+                        totalSize += file.length();
+                    } catch (NumberFormatException e) {
+                        // Not a segment of this spool.
+                    }
+                }
+            }
+        }
+        this.checkpoint = FileChannel.open(new File(dir, prefix + CHECKPOINT_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadCheckpoint();
+        this.nextSeq = Math.max(readSeq, segments.isEmpty() ? 0 : segments.lastKey()) + 1;
+    }
+
+    private void loadCheckpoint() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        while (buf.hasRemaining() && checkpoint.read(buf, buf.position()) > 0) {
+            // Read fully
+        }
+        buf.flip();
+        if (buf.remaining() == CHECKPOINT_SIZE) {
+            long seq = buf.getLong();
+            long pos = buf.getLong();
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), 0, 16);
+            if ((int) crc.getValue() == buf.getInt()) {
+                this.readSeq = seq;
+                this.readPos = pos;
+            }
+        }
+        // Segments before the checkpoint have already been emitted.
+        Iterator<Map.Entry<Long, Long>> iter = segments.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> segment = iter.next();
+            if (segment.getKey() >= readSeq) {
+                break;
+            }
+            delete(segment.getKey(), segment.getValue());
+            iter.remove();
+        }
+    }
+
+    boolean isEmpty() {
+        if (segments.isEmpty()) {
+            return true;
+        }
+        Map.Entry<Long, Long> last = segments.lastEntry();
+        return last.getKey() < readSeq || (last.getKey() == readSeq && readPos >= last.getValue());
+    }
+
+    /**
+     * @return false if the records could not be written because the spool is full
+     */
+    boolean write(List<R> records) throws IOException {
+        if (records.isEmpty()) {
+            return true;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        CRC32 crc = new CRC32();
+        for (R record : records) {
+            recordBytes.reset();
+            serializer.serialize(record, recordOut);
+            recordOut.flush();
+            byte[] payload = recordBytes.toByteArray();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+        }
+        out.flush();
+        if (maxSize > 0 && totalSize + bytes.size() > maxSize) {
+            return false;
+        }
+        if (writer == null || segments.get(writeSeq) >= SEGMENT_SIZE) {
+            roll();
+        }
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        while (buf.hasRemaining()) {
+            writer.write(buf);
+        }
+        writer.force(false);
+        segments.put(writeSeq, segments.get(writeSeq) + bytes.size());
+        totalSize += bytes.size();
+        return true;
+    }
+
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+        writeSeq = nextSeq++;
+        writer = FileChannel.open(segmentFile(writeSeq).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segments.put(writeSeq, 0L);
+    }
+
+    List<R> read(int maxRecords) throws IOException {
+        List<R> records = new ArrayList<R>(Math.min(maxRecords, 1024));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while (records.size() < maxRecords) {
+            Map.Entry<Long, Long> segment = segments.ceilingEntry(readSeq);
+            if (segment == null) {
+                break;
+            }
+            if (segment.getKey() != readSeq) {
+                readSeq = segment.getKey();
+                readPos = 0;
+            }
+            long size = segment.getValue();
+            if (readPos >= size) {
+                if (readSeq == writeSeq || segments.higherKey(readSeq) == null) {
+                    break;
+                }
+                readSeq++;
+                readPos = 0;
+                continue;
+            }
+            FileChannel channel = openReader(readSeq);
+            header.clear();
+            readFully(channel, header, readPos);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || readPos + HEADER_SIZE + length > size) {
+                skipCorruptedSegment("truncated record");
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, readPos + HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                skipCorruptedSegment("checksum mismatch");
+                continue;
+            }
+            records.add(serializer.deserialize(
+                    new DataInputStream(new ByteArrayInputStream(payload.array(), 0, length))));
+            readPos += HEADER_SIZE + length;
+        }
+        return records;
+    }
+
+    private void skipCorruptedSegment(String reason) throws IOException {
+        if (readSeq == writeSeq) {
+            throw new IOException("The spool segment is corrupted (" + reason + "): " + segmentFile(readSeq));
+        }
+        // A crash while writing may leave an incomplete record at the end of the segment.
+        readPos = segments.get(readSeq);
+    }
+
+    private FileChannel openReader(long seq) throws IOException {
+        if (reader == null || readerSeq != seq) {
+            closeReader();
+            reader = FileChannel.open(segmentFile(seq).toPath(), StandardOpenOption.READ);
+            readerSeq = seq;
+        }
+        return reader;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of the spool segment.");
+            }
+        }
+    }
+
+    /**
+     * Mark the records returned by {@link #read(int)} as emitted.
+     */
+    void commit() throws IOException {
+        boolean empty = isEmpty();
+        Iterator<Map.Entry<Long, Long>> iter = segments.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> segment = iter.next();
+            long seq = segment.getKey();
+            if (seq >= readSeq && !empty) {
+                break;
+            }
+            if (seq == readerSeq) {
+                closeReader();
+            }
+            if (seq == writeSeq) {
+                writer.close();
+                writer = null;
+                writeSeq = -1;
+            }
+            delete(seq, segment.getValue());
+            iter.remove();
+        }
+        if (empty) {
+            readSeq = nextSeq;
+            readPos = 0;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        buf.putLong(readSeq).putLong(readPos);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, 16);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        while (buf.hasRemaining()) {
+            checkpoint.write(buf, buf.position());
+        }
+        checkpoint.force(false);
+    }
+
+    private void delete(long seq, long size) {
+        segmentFile(seq).delete();
+        totalSize -= size;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, prefix + "." + seq + SEGMENT_SUFFIX);
+    }
+
+    private void closeReader() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+            readerSeq = -1;
+        }
+    }
+
+    void close() {
+        try {
+            closeReader();
+            if (writer != null) {
+                writer.close();
+            }
+            checkpoint.close();
+        } catch (IOException e) {
+            // pass
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of the fields of a record, kept in insertion order in a flat array. A record has a few dozen
+ * fields at most, so a linear scan is cheaper than hashing, and the map is reused by clearing it.
+ */
+final class FieldMap extends AbstractMap<String, Object> {
+    private Object[] table;
+    private int size;
+
+    FieldMap(int initialCapacity) {
+        this.table = new Object[Math.max(initialCapacity, 4) * 2];
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0, l = size * 2; i < l; i += 2) {
+            if (table[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object previous = table[index + 1];
+            table[index + 1] = value;
+            return previous;
+        }
+        if (size * 2 == table.length) {
+            Object[] newTable = new Object[table.length * 2];
+            System.arraycopy(table, 0, newTable, 0, table.length);
+            table = newTable;
+        }
+        table[size * 2] = key;
+        table[size * 2 + 1] = value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? table[index + 1] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object previous = table[index + 1];
+        System.arraycopy(table, index + 2, table, index, size * 2 - index - 2);
+        size--;
+        table[size * 2] = null;
+        table[size * 2 + 1] = null;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0, l = size * 2; i < l; i++) {
+            table[i] = null;
+        }
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    String keyAt(int index) {
+        return (String) table[index * 2];
+    }
+
+    Object valueAt(int index) {
+        return table[index * 2 + 1];
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < size;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (index >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>(keyAt(index), valueAt(index));
+                        index++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        FieldMap.this.remove(keyAt(--index));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
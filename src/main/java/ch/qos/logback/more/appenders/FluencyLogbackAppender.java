@@ -50,23 +50,30 @@ public class FluencyLogbackAppender<E> extends FluentdAppenderBase<E> {
 
     @Override
     protected void append(E event) {
-        Map<String, Object> data = createData(event);
+        Map<String, Object> data;
+        if (directSerialization) {
+            RecordPacker packer = RecordPacker.get();
+            data = packer.fields();
+            putData(event, data, true);
+            try {
+                if (packer.pack(LOW_CARDINALITY_FIELDS)) {
+                    emit(event, packer.array(), packer.size());
+                    return;
+                }
+                // The record has a value which the packer does not know, let Fluency serialize the same fields.
+                // Fluency serializes them before it returns, so the per-thread fields and buffers can be passed.
+            } catch (IOException e) {
+                addError("Fluency throws the error and the message has been omitted. " + data, e);
+                return;
+            }
+        } else {
+            data = createData(event);
+        }
         try {
-            String tag = getTag() == null ? "" : getTag();
             if (isUseEventTime()) {
-                EventTime eventTime;
-                if (event instanceof ILoggingEvent) {
-                    long timeStampInMs = ((ILoggingEvent) event).getTimeStamp();
-                    eventTime = EventTime.fromEpochMilli(timeStampInMs);
-                } else if (event instanceof IAccessEvent) {
-                    long timeStampInMs = ((IAccessEvent) event).getTimeStamp();
-                    eventTime = EventTime.fromEpochMilli(timeStampInMs);
-                } else {
-                    eventTime = EventTime.fromEpochMilli(System.currentTimeMillis());
-                }
-                fluency.emit(tag, eventTime, data);
+                fluency.emit(tag(), eventTime(event), data);
             } else {
-                fluency.emit(tag, data);
+                fluency.emit(tag(), data);
             }
         } catch (IOException e) {
             // pass
@@ -74,6 +81,35 @@ public class FluencyLogbackAppender<E> extends FluentdAppenderBase<E> {
         }
     }
 
+    private void emit(E event, byte[] record, int length) throws IOException {
+        if (isUseEventTime()) {
+            fluency.emit(tag(), eventTime(event), record, 0, length);
+        } else {
+            fluency.emit(tag(), record, 0, length);
+        }
+    }
+
+    private String tag() {
+        return getTag() == null ? "" : getTag();
+    }
+
+    private EventTime eventTime(E event) {
+        if (event instanceof ILoggingEvent) {
+            long timeStampInMs = ((ILoggingEvent) event).getTimeStamp();
+            return EventTime.fromEpochMilli(timeStampInMs);
+        } else if (event instanceof IAccessEvent) {
+            long timeStampInMs = ((IAccessEvent) event).getTimeStamp();
+            return EventTime.fromEpochMilli(timeStampInMs);
+        } else {
+            return EventTime.fromEpochMilli(System.currentTimeMillis());
+        }
+    }
+
+    // For testing
+    void setFluency(Fluency fluency) {
+        this.fluency = fluency;
+    }
+
     @Override
     public void stop() {
         try {
@@ -106,6 +142,7 @@ public class FluencyLogbackAppender<E> extends FluentdAppenderBase<E> {
     private Integer senderMaxRetryCount;
     private boolean sslEnabled;
     private Boolean jvmHeapBufferMode;
+    private boolean directSerialization;
 
     public RemoteServers getRemoteServers() {
         return remoteServers;
@@ -227,6 +264,31 @@ public class FluencyLogbackAppender<E> extends FluentdAppenderBase<E> {
         this.jvmHeapBufferMode = jvmHeapBufferMode;
     }
 
+    public boolean isDirectSerialization() {
+        return directSerialization;
+    }
+
+    /**
+     * Serialize the records to MessagePack in the appender instead of passing a map to Fluency.
+     *
+     * @param directSerialization false by default
+     */
+    public void setDirectSerialization(boolean directSerialization) {
+        this.directSerialization = directSerialization;
+    }
+
+    /**
+     * @return the lookups of the serialized field names, logger names, thread names and levels which have
+     *         hit the cache, shared by the appenders
+     */
+    public long getStringCacheHits() {
+        return RecordPacker.STRINGS.getHits();
+    }
+
+    public long getStringCacheMisses() {
+        return RecordPacker.STRINGS.getMisses();
+    }
+
     protected FluencyBuilderForFluentd configureFluency() {
         FluencyBuilderForFluentd builder = new FluencyBuilderForFluentd();
 
@@ -16,15 +16,20 @@ package ch.qos.logback.more.appenders;
 import static ch.qos.logback.core.CoreConstants.CODES_URL;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Marker;
 
 import ch.qos.logback.classic.pattern.CallerDataConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.AppenderBase;
 import ch.qos.logback.core.Layout;
@@ -42,6 +47,10 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
     private static final String DATA_MARKER = "marker";
     private static final String DATA_CALLER = "caller";
     private static final String DATA_THROWABLE = "throwable";
+    private static final String DATA_THROWABLE_HASH = "throwable_hash";
+    // Fields with few distinct values, worth caching in their serialized form.
+    static final Set<String> LOW_CARDINALITY_FIELDS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(DATA_LOGGER, DATA_THREAD, DATA_LEVEL)));
 
     private Encoder<E> encoder;
     protected Map<String, String> additionalFields;
@@ -49,22 +58,73 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
     private String markerPrefix = DATA_MARKER;
     private String messageFieldKeyName = DATA_MESSAGE;
     private List<String> ignoredFields;
+    private int stackTraceCacheSize = 256;
+    private long stackTraceDedupWindow;
+
+    private volatile FieldPlan plan;
+
+    @Override
+    public void start() {
+        plan = new FieldPlan();
+        super.start();
+    }
+
+    private FieldPlan plan() {
+        FieldPlan current = plan;
+        if (current == null) {
+            current = new FieldPlan();
+            plan = current;
+        }
+        return current;
+    }
 
     protected Map<String, Object> createData(E event) {
-        Map<String, Object> data = new HashMap<String, Object>();
+        FieldPlan plan = plan();
+        int size = plan.size;
+        if (event instanceof ILoggingEvent) {
+            size += ((ILoggingEvent) event).getMDCPropertyMap().size();
+        }
+        Map<String, Object> data = new HashMap<String, Object>(size * 4 / 3 + 1);
+        putData(event, data);
+        return data;
+    }
+
+    /**
+     * Put the fields of the event into the given map.
+     */
+    protected void putData(E event, Map<String, Object> data) {
+        putData(event, data, false);
+    }
+
+    /**
+     * @param buffered put the encoded message as a per-thread ByteBuffer, which is valid until the next
+     *            event of the thread, instead of a byte array
+     */
+    void putData(E event, Map<String, Object> data, boolean buffered) {
+        FieldPlan plan = plan();
         if (event instanceof ILoggingEvent) {
             ILoggingEvent loggingEvent = (ILoggingEvent) event;
-            data.put(messageFieldKeyName, encoder != null ? encoder.encode(event) : loggingEvent.getFormattedMessage());
-            data.put(DATA_LOGGER, loggingEvent.getLoggerName());
-            data.put(DATA_THREAD, loggingEvent.getThreadName());
-            data.put(DATA_LEVEL, loggingEvent.getLevel().levelStr);
+            if (plan.message) {
+                data.put(messageFieldKeyName, encoder != null ? encode(event, buffered) : loggingEvent.getFormattedMessage());
+            }
+            if (plan.logger) {
+                data.put(DATA_LOGGER, loggingEvent.getLoggerName());
+            }
+            if (plan.thread) {
+                data.put(DATA_THREAD, loggingEvent.getThreadName());
+            }
+            if (plan.level) {
+                data.put(DATA_LEVEL, loggingEvent.getLevel().levelStr);
+            }
 
             Marker marker = loggingEvent.getMarker();
             if (marker != null) {
                 if (marker instanceof MapMarker) {
                     extractMapMarker((MapMarker) marker, data);
                 } else {
-                    data.put(markerName(), marker.toString());
+                    if (plan.marker) {
+                        data.put(plan.markerName, marker.toString());
+                    }
                     if (marker.hasReferences()) {
                         for (Iterator<Marker> iter = marker.iterator(); iter.hasNext();) {
                             Marker nestedMarker = iter.next();
@@ -76,35 +136,121 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
                 }
             }
 
-            if (loggingEvent.hasCallerData()) {
+            if (plan.caller && loggingEvent.hasCallerData()) {
                 data.put(DATA_CALLER, new CallerDataConverter().convert(loggingEvent));
             }
-            if (loggingEvent.getThrowableProxy() != null) {
-                data.put(DATA_THROWABLE, ThrowableProxyUtil.asString(loggingEvent.getThrowableProxy()));
+            if (plan.throwable && loggingEvent.getThrowableProxy() != null) {
+                putThrowable(loggingEvent, data, plan);
             }
             for (Map.Entry<String, String> entry : loggingEvent.getMDCPropertyMap().entrySet()) {
-                data.put(entry.getKey(), entry.getValue());
+                if (!plan.isIgnored(entry.getKey())) {
+                    data.put(entry.getKey(), entry.getValue());
+                }
             }
-        } else {
-            data.put(messageFieldKeyName, encoder != null ? encoder.encode(event) : event.toString());
+        } else if (plan.message) {
+            data.put(messageFieldKeyName, encoder != null ? encode(event, buffered) : event.toString());
         }
 
-        if (additionalFields != null) {
-            data.putAll(additionalFields);
+        String[] additional = plan.additional;
+        for (int i = 0; i < additional.length; i += 2) {
+            data.put(additional[i], additional[i + 1]);
         }
+    }
 
-        if(ignoredFields != null) {
-            ignoredFields.stream().forEach(data::remove);
-        }
+    private Object encode(E event, boolean buffered) {
+        return buffered ? Encoders.encode(encoder, event) : encoder.encode(event);
+    }
 
-        return data;
+    private void putThrowable(ILoggingEvent event, Map<String, Object> data, FieldPlan plan) {
+        IThrowableProxy proxy = event.getThrowableProxy();
+        if (plan.stackTraces == null) {
+            data.put(DATA_THROWABLE, ThrowableProxyUtil.asString(proxy));
+            return;
+        }
+        StackTraceCache.Entry entry = plan.stackTraces.get(proxy);
+        if (stackTraceDedupWindow > 0) {
+            if (plan.throwableHash) {
+                data.put(DATA_THROWABLE_HASH, entry.getHash());
+            }
+            if (entry.isRepeated(event.getTimeStamp(), stackTraceDedupWindow)) {
+                return;
+            }
+        }
+        String rendered = entry.getRendered();
+        if (rendered == null) {
+            rendered = ThrowableProxyUtil.asString(proxy);
+            entry.setRendered(rendered);
+        }
+        data.put(DATA_THROWABLE, rendered);
     }
 
     protected void extractMapMarker(MapMarker mapMarker, Map<String, Object> data) {
+        FieldPlan plan = plan();
         if (flattenMapMarker) {
-            data.putAll(mapMarker.getMap());
-        } else
-            data.put(mapMarkerName(mapMarker), mapMarker.getMap());
+            for (Map.Entry<String, ?> entry : mapMarker.getMap().entrySet()) {
+                if (!plan.isIgnored(entry.getKey())) {
+                    data.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } else {
+            String name = mapMarkerName(mapMarker);
+            if (!plan.isIgnored(name)) {
+                data.put(name, mapMarker.getMap());
+            }
+        }
+    }
+
+    /**
+     * The fields to emit, compiled from the configuration so that the events do not compute the ignored
+     * fields.
+     */
+    private final class FieldPlan {
+        final boolean message;
+        final boolean logger;
+        final boolean thread;
+        final boolean level;
+        final boolean marker;
+        final boolean caller;
+        final boolean throwable;
+        final boolean throwableHash;
+        final String markerName;
+        final Set<String> ignored;
+        // Key and value pairs of the additional fields which are not ignored.
+        final String[] additional;
+        final StackTraceCache stackTraces;
+        // Number of the fields except the MDC.
+        final int size;
+
+        FieldPlan() {
+            ignored = ignoredFields == null || ignoredFields.isEmpty()
+                    ? null
+                    : new HashSet<String>(ignoredFields);
+            markerName = markerName();
+            message = !isIgnored(messageFieldKeyName);
+            logger = !isIgnored(DATA_LOGGER);
+            thread = !isIgnored(DATA_THREAD);
+            level = !isIgnored(DATA_LEVEL);
+            marker = !isIgnored(markerName);
+            caller = !isIgnored(DATA_CALLER);
+            throwable = !isIgnored(DATA_THROWABLE);
+            throwableHash = !isIgnored(DATA_THROWABLE_HASH);
+            List<String> pairs = new ArrayList<String>();
+            if (additionalFields != null) {
+                for (Map.Entry<String, String> entry : additionalFields.entrySet()) {
+                    if (!isIgnored(entry.getKey())) {
+                        pairs.add(entry.getKey());
+                        pairs.add(entry.getValue());
+                    }
+                }
+            }
+            additional = pairs.toArray(new String[pairs.size()]);
+            size = 8 + additional.length / 2;
+            stackTraces = stackTraceCacheSize > 0 ? new StackTraceCache(stackTraceCacheSize) : null;
+        }
+
+        boolean isIgnored(String key) {
+            return ignored != null && ignored.contains(key);
+        }
     }
 
     /**
@@ -175,6 +321,7 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
             additionalFields = new HashMap<String, String>();
         }
         additionalFields.put(field.getKey(), field.getValue());
+        plan = null;
     }
 
     public void addIgnoredField(String fieldName) {
@@ -182,6 +329,7 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
             ignoredFields = new ArrayList<String>();
         }
         ignoredFields.add(fieldName);
+        plan = null;
     }
 
     @Deprecated
@@ -251,6 +399,7 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
 
     public void setMessageFieldKeyName(String messageFieldKeyName) {
         this.messageFieldKeyName = messageFieldKeyName;
+        plan = null;
     }
 
     public boolean isFlattenMapMarker() {
@@ -259,6 +408,35 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
 
     public void setFlattenMapMarker(boolean flattenMapMarker) {
         this.flattenMapMarker = flattenMapMarker;
+        plan = null;
+    }
+
+    public int getStackTraceCacheSize() {
+        return stackTraceCacheSize;
+    }
+
+    /**
+     * Set the number of the rendered stack traces to cache.
+     *
+     * @param stackTraceCacheSize 256 by default, 0 to render every stack trace
+     */
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+        this.stackTraceCacheSize = stackTraceCacheSize;
+        plan = null;
+    }
+
+    public long getStackTraceDedupWindow() {
+        return stackTraceDedupWindow;
+    }
+
+    /**
+     * Emit only the hash of a stack trace in the "throwable_hash" field if the same stack trace has
+     * been emitted within the window. Requires the stack trace cache.
+     *
+     * @param stackTraceDedupWindow milliseconds, 0 (disabled) by default
+     */
+    public void setStackTraceDedupWindow(long stackTraceDedupWindow) {
+        this.stackTraceDedupWindow = stackTraceDedupWindow;
     }
 
     public String getMarkerPrefix() {
@@ -273,5 +451,6 @@ public abstract class FluentdAppenderBase<E> extends AppenderBase<E> {
      */
     public void setMarkerPrefix(String markerPrefix) {
         this.markerPrefix = (markerPrefix != null) ? markerPrefix : DATA_MARKER;
+        plan = null;
     }
 }
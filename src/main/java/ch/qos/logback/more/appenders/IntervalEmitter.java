@@ -13,84 +13,380 @@
  */
 package ch.qos.logback.more.appenders;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.core.spi.ContextAware;
 
 public class IntervalEmitter<E, R> {
+    public static final int DEFAULT_CAPACITY = 65536;
+    private static final long DROP_WARN_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
     private volatile long lastEmit = -1;
+    private volatile boolean failing;
     private long maxInterval;
-    private Timer timer;
-    private volatile List<R> events;
+    private boolean asyncEmit;
+    private ContextAware owner;
+    private Flusher flusher;
+    private int capacity = DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private long blockTimeout;
+    private int maxBatchEvents;
+    private long maxBatchBytes;
+    private final LongAdder batchBytes = new LongAdder();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final AtomicLong lastDropWarn = new AtomicLong();
+    private EventRingBuffer<R> events;
+    private List<R> pending; // Owned by the thread which holds the emitting flag.
+    private String spoolDir;
+    private String spoolName;
+    private EventSerializer<R> serializer;
+    private int spoolHighWaterMark;
+    private long maxSpoolSize;
+    private EventSpool<R> spool;
+    private boolean spooling; // The events go through the spool until it becomes empty.
+    private final AtomicBoolean emitting = new AtomicBoolean();
     private final EventMapper<E, R> eventMapper;
     private final IntervalAppender<R> appender;
 
     IntervalEmitter(long maxInterval, EventMapper<E, R> eventMapper, IntervalAppender<R> appender) {
-        this.events = new ArrayList<R>();
         this.maxInterval = maxInterval;
         this.eventMapper = eventMapper;
         this.appender = appender;
-        this.timer = new Timer();
-        this.timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                IntervalEmitter.this.append(null);
+    }
+
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    /**
+     * @param maxBatchEvents emit before the interval expires once this number of events is buffered. 0 to disable.
+     */
+    void setMaxBatchEvents(int maxBatchEvents) {
+        this.maxBatchEvents = maxBatchEvents;
+    }
+
+    /**
+     * @param maxBatchBytes emit before the interval expires once the encoded events reach this size. 0 to disable.
+     */
+    void setMaxBatchBytes(long maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * @param asyncEmit true to emit only from the flusher thread, so the logging threads never wait for the
+     *                  destination.
+     */
+    void setAsyncEmit(boolean asyncEmit) {
+        this.asyncEmit = asyncEmit;
+    }
+
+    /**
+     * Move the events to the disk once the destination keeps failing and more than the high-water mark
+     * events are waiting in memory. The spooled events are emitted in order, also after a restart.
+     */
+    void setSpool(String spoolDir, String spoolName, EventSerializer<R> serializer, int spoolHighWaterMark,
+            long maxSpoolSize) {
+        this.spoolDir = spoolDir;
+        this.spoolName = spoolName;
+        this.serializer = serializer;
+        this.spoolHighWaterMark = spoolHighWaterMark;
+        this.maxSpoolSize = maxSpoolSize;
+    }
+
+    void setOwner(ContextAware owner) {
+        this.owner = owner;
+    }
+
+    void start() {
+        this.events = new EventRingBuffer<R>(capacity, overflowPolicy, blockTimeout,
+                new EventRingBuffer.DropListener<R>() {
+                    @Override
+                    public void dropped(R record) {
+                        if (maxBatchBytes > 0) {
+                            batchBytes.add(-eventMapper.sizeOf(record));
+                        }
+                        countDropped(1);
+                    }
+                });
+        this.pending = new ArrayList<R>();
+        if (spoolDir != null && spoolDir.length() > 0) {
+            try {
+                this.spool = new EventSpool<R>(new File(spoolDir), spoolName, serializer, maxSpoolSize);
+                this.spooling = !spool.isEmpty(); // Replay the events left by the previous run.
+            } catch (IOException e) {
+                addWarn("Could not open the spool directory " + spoolDir + ". The events are kept in memory.", e);
             }
-        }, this.maxInterval, this.maxInterval);
+        }
+        this.flusher = new Flusher();
+        this.flusher.start();
     }
 
     void append(E event) {
+        if (event != null) {
+            R record = eventMapper.map(event);
+            if (maxBatchBytes > 0) {
+                // Counted before offering, the drop listener takes back the dropped or evicted ones.
+                batchBytes.add(eventMapper.sizeOf(record));
+            }
+            events.offer(record);
+        }
+        // Do not force emitting while the destination keeps failing, the interval paces the retries.
+        boolean batchFull = !failing && isBatchFull();
+        if (asyncEmit) {
+            if (batchFull && flushRequested.compareAndSet(false, true)) {
+                LockSupport.unpark(flusher);
+            }
+        } else {
+            emitIfDue(batchFull);
+        }
+    }
+
+    /**
+     * Put the records back to be emitted again, e.g. the ones whose asynchronous sending has failed. It never
+     * blocks, the records which do not fit in the buffer are dropped.
+     */
+    void requeue(List<R> records) {
+        for (int i = 0; i < records.size(); i++) {
+            if (!events.tryOffer(records.get(i))) {
+                countDropped(records.size() - i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of events dropped so far because the buffer was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    private void countDropped(int count) {
+        droppedEvents.add(count);
+        // Warn at most once per interval, the logging threads may keep dropping while the destination is slow.
         long now = System.currentTimeMillis();
-        if (now > lastEmit + maxInterval) {
-            synchronized (this) {
-                List<R> copiedEvents = new ArrayList<>(this.events);
-                this.events = new ArrayList<>(copiedEvents.size() + 3);
-                if (event != null) {
-                    copiedEvents.add(this.eventMapper.map(event));
-                }
-                if (emit(copiedEvents)) {
+        long last = lastDropWarn.get();
+        if (now - last >= DROP_WARN_INTERVAL && lastDropWarn.compareAndSet(last, now)) {
+            addWarn(getDroppedEvents() + " events have been dropped so far because the buffer is full (capacity: "
+                    + events.capacity() + ", overflow policy: " + overflowPolicy + ").", null);
+        }
+    }
+
+    private boolean isBatchFull() {
+        return (maxBatchEvents > 0 && events.size() >= maxBatchEvents)
+                || (maxBatchBytes > 0 && batchBytes.sum() >= maxBatchBytes);
+    }
+
+    private void emitIfDue(boolean force) {
+        long now = System.currentTimeMillis();
+        if ((force || now > lastEmit + maxInterval) && emitting.compareAndSet(false, true)) {
+            try {
+                if (emit()) {
                     lastEmit = now;
+                    failing = false;
+                } else {
+                    failing = true;
                 }
+            } finally {
+                emitting.set(false);
             }
-        } else {
-            if (event != null) {
-                events.add(eventMapper.map(event));
+        }
+    }
+
+    private boolean emit() {
+        batchBytes.reset();
+        if (spool != null && !spooling && pending.size() >= spoolHighWaterMark && writeSpool(pending)) {
+            pending = new ArrayList<R>();
+            spooling = true;
+        }
+        while (true) {
+            if (spooling) {
+                // Keep the order: the new events go behind the spooled ones.
+                spoolEvents();
+                if (pending.isEmpty()) {
+                    pending = readSpool();
+                }
+            } else {
+                // Keep the failed events ahead of the new ones, but never hold more than the capacity in memory.
+                events.drainTo(pending, events.capacity() - pending.size());
+            }
+            if (pending.isEmpty()) {
+                return true;
+            }
+            if (!appender.append(pending)) {
+                return false;
+            }
+            pending = new ArrayList<R>();
+            if (!spooling) {
+                return true;
             }
+            try {
+                spool.commit();
+            } catch (IOException e) {
+                addWarn("Could not save the position of the spool. The events may be emitted again after restart.", e);
+            }
+            if (spool.isEmpty()) {
+                spooling = false;
+                return true;
+            }
+        }
+    }
+
+    private void spoolEvents() {
+        List<R> drained = new ArrayList<R>(events.size());
+        events.drainTo(drained, events.capacity());
+        if (!writeSpool(drained)) {
+            addWarn(drained.size() + " events have been dropped because they could not be spooled.", null);
         }
     }
 
-    public boolean emit(List<R> copiedEvents) {
-        if (!copiedEvents.isEmpty()) {
-            if (appender.append(copiedEvents)) {
+    private boolean writeSpool(List<R> records) {
+        try {
+            if (spool.write(records)) {
                 return true;
             }
-            events.addAll(0, copiedEvents);
-            return false;
+            addWarn("The spool has reached the max size: " + maxSpoolSize, null);
+        } catch (IOException e) {
+            addWarn("Could not write the events to the spool.", e);
+        }
+        return false;
+    }
+
+    private List<R> readSpool() {
+        try {
+            return spool.read(spoolHighWaterMark);
+        } catch (IOException e) {
+            addWarn("Could not read the events from the spool.", e);
+            return new ArrayList<R>();
+        }
+    }
+
+    private void addWarn(String msg, Throwable e) {
+        if (owner != null) {
+            owner.addWarn(msg, e);
         }
-        return true;
     }
 
     public void emitForShutdown(long waitMillis, int retry) {
+        flusher.shutdown();
+        while (!emitting.compareAndSet(false, true)) {
+            Thread.yield();
+        }
         try {
             for (int i = 0; i < retry; i++) {
-                if (emit(events)) {
-                    return;
+                while (emit()) {
+                    if (events.isEmpty() && !spooling) {
+                        return;
+                    }
                 }
                 Thread.sleep(waitMillis);
             }
         } catch (InterruptedException e) {
             // Ignore
+        } finally {
+            try {
+                if (spool != null) {
+                    // Keep the rest for the next run. Spooled pending events are still in the spool.
+                    if (!pending.isEmpty() && !spooling && writeSpool(pending)) {
+                        pending = new ArrayList<R>();
+                    }
+                    spoolEvents();
+                    spool.close();
+                }
+            } finally {
+                emitting.set(false);
+            }
+        }
+        if (!pending.isEmpty() && !spooling) {
+            System.err.println("Could not write the log: " + pending);
+        }
+    }
+
+    private final class Flusher extends Thread {
+        private volatile boolean running = true;
+
+        Flusher() {
+            super("logback-more-appenders-emitter");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long intervalNanos = TimeUnit.MILLISECONDS.toNanos(maxInterval);
+            while (running) {
+                if (!flushRequested.get()) {
+                    LockSupport.parkNanos(this, intervalNanos);
+                }
+                if (!running) {
+                    return;
+                }
+                try {
+                    emitIfDue(flushRequested.getAndSet(false));
+                } catch (RuntimeException e) {
+                    addWarn("Could not emit the buffered events. It will be retried at the next interval.", e);
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join(maxInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        System.err.println("Could not write the log: " + events);
+    }
+
+    public enum OverflowPolicy {
+        /** Discard the event being appended when the buffer is full. */
+        DROP_NEWEST,
+        /** Discard the oldest buffered event to make room for the event being appended. */
+        DROP_OLDEST,
+        /** Wait up to the block timeout for room, then discard the event being appended. */
+        BLOCK
     }
 
     public interface EventMapper<E, R> {
         R map(E event);
+
+        /**
+         * @return the encoded size of the record in bytes
+         */
+        int sizeOf(R record);
+    }
+
+    public interface EventSerializer<R> {
+        void serialize(R record, DataOutput out) throws IOException;
+
+        R deserialize(DataInput in) throws IOException;
     }
 
     public interface IntervalAppender<R> {
         // Threadsafe
+        /**
+         * @return false to retry the events left in the list at the next emission
+         */
         boolean append(List<R> events);
     }
 }
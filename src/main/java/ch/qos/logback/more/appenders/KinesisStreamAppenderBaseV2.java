@@ -20,6 +20,11 @@ import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.kinesis.KinesisClient;
 import software.amazon.awssdk.services.kinesis.KinesisClientBuilder;
 import software.amazon.awssdk.services.kinesis.model.*;
+import ch.qos.logback.more.appenders.ShardMap.ShardLister;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public abstract class KinesisStreamAppenderBaseV2<E> extends AwsAppenderV2<E> {
 
@@ -116,7 +121,88 @@ public abstract class KinesisStreamAppenderBaseV2<E> extends AwsAppenderV2<E> {
         th.start();
     }
 
+    /**
+     * @return the starting hash keys of the open shards, or null if the stream is not active yet
+     */
+    protected List<String> listOpenShards() {
+        if (kinesis == null || !active) {
+            return null;
+        }
+        List<String> hashKeys = new ArrayList<String>();
+        ListShardsRequest request = ListShardsRequest.builder().streamName(streamName).build();
+        while (true) {
+            ListShardsResponse result = kinesis.listShards(request);
+            for (Shard shard : result.shards()) {
+                if (shard.sequenceNumberRange().endingSequenceNumber() == null) {
+                    hashKeys.add(shard.hashKeyRange().startingHashKey());
+                }
+            }
+            if (result.nextToken() == null) {
+                return hashKeys;
+            }
+            request = ListShardsRequest.builder().nextToken(result.nextToken()).build();
+        }
+    }
+
     public interface PartitionKey<E> {
         String get(E event);
     }
+
+    /**
+     * Partition key which routes the records to the shards by the explicit hash key.
+     */
+    public interface ExplicitHashPartitionKey<E> extends PartitionKey<E> {
+        /**
+         * @return null to route the record by the partition key
+         */
+        String getExplicitHashKey(E event);
+    }
+
+    /**
+     * Spreads the records evenly over the open shards by assigning the explicit hash keys of the shards
+     * round-robin. The shards are listed in the background every refreshInterval millis, so that resharding
+     * is followed.
+     */
+    public static class ShardAwarePartitionKey<E> implements ExplicitHashPartitionKey<E> {
+        private static final String FIXED_PARTITION_KEY = "0";
+
+        private long refreshInterval = 60000;
+        private ShardMap shardMap;
+
+        public void setRefreshInterval(long refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        void start(final KinesisStreamAppenderBaseV2<?> appender) {
+            shardMap = new ShardMap(new ShardLister() {
+                @Override
+                public List<String> listOpenShards() {
+                    return appender.listOpenShards();
+                }
+            }, refreshInterval);
+            shardMap.setOwner(appender);
+            shardMap.start();
+        }
+
+        void stop() {
+            if (shardMap != null) {
+                shardMap.stop();
+            }
+        }
+
+        @Override
+        public String get(E event) {
+            if (shardMap != null && shardMap.isLoaded()) {
+                // The explicit hash key routes the record, so a single partition key keeps the partition key
+                // table of the aggregated records small.
+                return FIXED_PARTITION_KEY;
+            }
+            return String.valueOf(ThreadLocalRandom.current().nextInt(10000));
+        }
+
+        @Override
+        public String getExplicitHashKey(E event) {
+            return shardMap == null ? null : shardMap.nextExplicitHashKey();
+        }
+    }
 }
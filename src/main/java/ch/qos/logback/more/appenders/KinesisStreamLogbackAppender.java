@@ -13,10 +13,20 @@
  */
 package ch.qos.logback.more.appenders;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import com.amazonaws.services.kinesis.model.PutRecordsRequest;
 import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
 import com.amazonaws.services.kinesis.model.PutRecordsResult;
@@ -24,7 +34,11 @@ import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.encoder.Encoder;
 import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
 import ch.qos.logback.more.appenders.IntervalEmitter.IntervalAppender;
+import ch.qos.logback.more.appenders.RetryScheduler.RetryTarget;
+import ch.qos.logback.more.appenders.codec.CompressionCodec;
+import ch.qos.logback.more.appenders.codec.CompressionFrame;
 
 /**
  * Appender for Kinesis Stream. It appends entries for every emitInterval.
@@ -33,7 +47,22 @@ import ch.qos.logback.more.appenders.IntervalEmitter.IntervalAppender;
  */
 public class KinesisStreamLogbackAppender extends KinesisStreamAppenderBase<ILoggingEvent> {
 
+    // The limits of a PutRecords request.
+    private static final int MAX_BATCH_RECORDS = 500;
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH_BYTES = 5 * 1024 * 1024;
+
     private IntervalEmitter<ILoggingEvent, PutRecordsRequestEntry> emitter;
+    private int maxInFlightRequests = 4;
+    private boolean aggregate;
+    private CompressionCodec codec;
+    private int compressionThreshold = 1024;
+    private int maxRetries = 3;
+    private long retryInitialDelay = 100;
+    private long retryMaxDelay = 5000;
+    private int retryBudget = 10000;
+    private RetryScheduler<PutRecordsRequestEntry> retryScheduler;
+    private ExecutorService putExecutor;
     private PartitionKey<ILoggingEvent> partitionKey = new RandomPartitionKey();
     private long emitInterval = 10000;
 
@@ -57,6 +86,69 @@ public class KinesisStreamLogbackAppender extends KinesisStreamAppenderBase<ILog
         this.partitionKey = partitionKey;
     }
 
+    /**
+     * @param maxInFlightRequests the max number of PutRecords requests sent concurrently (Default: 4)
+     */
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    /**
+     * Pack the entries into records of the KPL aggregated format up to the record size limit, so that they are
+     * de-aggregated by KCL and the other standard consumers.
+     *
+     * @param aggregate true to aggregate the entries (Default: false)
+     */
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * Compress the aggregated records and the records larger than compressionThreshold. The compressed records
+     * start with the header of {@link CompressionFrame}.
+     *
+     * @param codec the codec, e.g. {@link ch.qos.logback.more.appenders.codec.GzipCodec} (Default: null = no compression)
+     */
+    public void setCodec(CompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @param compressionThreshold the min bytes of the records compressed (Default: 1024)
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param maxRetries the max number of retries of the entries which have partially failed (Default: 3)
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param retryInitialDelay the delay millis of the first retry, doubled for each retry (Default: 100)
+     */
+    public void setRetryInitialDelay(long retryInitialDelay) {
+        this.retryInitialDelay = retryInitialDelay;
+    }
+
+    /**
+     * @param retryMaxDelay the max delay millis of the retries (Default: 5000)
+     */
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    /**
+     * @param retryBudget the max number of the entries waiting for a retry. The entries beyond it are discarded
+     *        (Default: 10000)
+     */
+    public void setRetryBudget(int retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
     public void setEmitInterval(long emitInterval) {
         this.emitInterval = emitInterval;
     }
@@ -67,8 +159,30 @@ public class KinesisStreamLogbackAppender extends KinesisStreamAppenderBase<ILog
 
     @Override
     public void start() {
+        if (maxInFlightRequests < 1) {
+            throw new IllegalArgumentException("maxInFlightRequests must be greater than 0.");
+        }
+        if (maxInFlightRequests > 1) {
+            this.putExecutor = Executors.newFixedThreadPool(maxInFlightRequests, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread th = new Thread(r, "logback-more-appenders-kinesis");
+                    th.setDaemon(true);
+                    return th;
+                }
+            });
+        }
+        if (partitionKey instanceof ShardAwarePartitionKey) {
+            ((ShardAwarePartitionKey<ILoggingEvent>) partitionKey).start(this);
+        }
+        KinesisIntervalAppender appender = new KinesisIntervalAppender();
+        this.retryScheduler = new RetryScheduler<PutRecordsRequestEntry>(appender,
+                maxRetries, retryInitialDelay, retryMaxDelay, retryBudget);
+        retryScheduler.setOwner(this);
         this.emitter = new IntervalEmitter<ILoggingEvent, PutRecordsRequestEntry>(emitInterval,
-                new KinesisEventMapper(), new KinesisIntervalAppender());
+                new KinesisEventMapper(), appender);
+        configureEmitter(emitter, new KinesisEventSerializer());
+        emitter.start();
         super.start();
     }
 
@@ -76,13 +190,21 @@ public class KinesisStreamLogbackAppender extends KinesisStreamAppenderBase<ILog
     public void stop() {
         try {
             emitter.emitForShutdown(10000, 10);
+            retryScheduler.shutdown(10000);
         } catch (Exception e) {
             // Ignore
         }
+        if (partitionKey instanceof ShardAwarePartitionKey) {
+            ((ShardAwarePartitionKey<ILoggingEvent>) partitionKey).stop();
+        }
         try {
             super.stop();
         } catch (Exception e) {
             // Ignore
+        } finally {
+            if (putExecutor != null) {
+                putExecutor.shutdown();
+            }
         }
     }
 
@@ -91,66 +213,250 @@ public class KinesisStreamLogbackAppender extends KinesisStreamAppenderBase<ILog
         emitter.append(eventObject);
     }
 
+    // For testing
+    EventMapper<ILoggingEvent, PutRecordsRequestEntry> newEventMapper() {
+        return new KinesisEventMapper();
+    }
+
     private final class KinesisEventMapper implements EventMapper<ILoggingEvent, PutRecordsRequestEntry> {
 
         @Override
         public PutRecordsRequestEntry map(ILoggingEvent event) {
             PutRecordsRequestEntry entry  = new PutRecordsRequestEntry();
-            entry.setData(ByteBuffer.wrap(encoder.encode(event)));
+            entry.setData(ByteBuffer.wrap(Encoders.toByteArray(encoder, event)));
             entry.setPartitionKey(partitionKey.get(event));
+            if (partitionKey instanceof ExplicitHashPartitionKey) {
+                entry.setExplicitHashKey(((ExplicitHashPartitionKey<ILoggingEvent>) partitionKey).getExplicitHashKey(event));
+            }
+            return entry;
+        }
+
+        @Override
+        public int sizeOf(PutRecordsRequestEntry entry) {
+            return entry.getData().remaining();
+        }
+    }
+
+    private static final class KinesisEventSerializer implements EventSerializer<PutRecordsRequestEntry> {
+        @Override
+        public void serialize(PutRecordsRequestEntry entry, DataOutput out) throws IOException {
+            ByteBuffer data = entry.getData().duplicate();
+            out.writeUTF(entry.getPartitionKey());
+            out.writeBoolean(entry.getExplicitHashKey() != null);
+            if (entry.getExplicitHashKey() != null) {
+                out.writeUTF(entry.getExplicitHashKey());
+            }
+            out.writeInt(data.remaining());
+            while (data.hasRemaining()) {
+                out.writeByte(data.get());
+            }
+        }
+
+        @Override
+        public PutRecordsRequestEntry deserialize(DataInput in) throws IOException {
+            PutRecordsRequestEntry entry = new PutRecordsRequestEntry();
+            entry.setPartitionKey(in.readUTF());
+            if (in.readBoolean()) {
+                entry.setExplicitHashKey(in.readUTF());
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            entry.setData(ByteBuffer.wrap(data));
             return entry;
         }
     }
 
-    private final class KinesisIntervalAppender implements IntervalAppender<PutRecordsRequestEntry> {
+    final class KinesisIntervalAppender
+            implements IntervalAppender<PutRecordsRequestEntry>, RetryTarget<PutRecordsRequestEntry> {
 
         @Override
         public boolean append(List<PutRecordsRequestEntry> entries) {
             if (!active) {
                 ensureKinesisStream();
             }
-            return append(entries, 0);
+            List<PutRecordsRequestEntry> records = aggregate ? aggregate(entries) : entries;
+            if (codec != null) {
+                records = compress(records);
+            }
+            List<List<PutRecordsRequestEntry>> batches = split(records);
+            List<FutureTask<Boolean>> results = new ArrayList<FutureTask<Boolean>>(batches.size());
+            for (final List<PutRecordsRequestEntry> batch : batches) {
+                FutureTask<Boolean> result = new FutureTask<Boolean>(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return put(batch);
+                    }
+                });
+                if (putExecutor == null || batches.size() == 1) {
+                    result.run();
+                } else {
+                    putExecutor.execute(result);
+                }
+                results.add(result);
+            }
+            List<PutRecordsRequestEntry> failedEntries = new ArrayList<PutRecordsRequestEntry>();
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        failedEntries.addAll(batches.get(i));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failedEntries.addAll(batches.get(i));
+                } catch (ExecutionException e) {
+                    addError("Unexpected runtime error while appending kinesis entries.", e.getCause());
+                    failedEntries.addAll(batches.get(i));
+                }
+            }
+            if (failedEntries.isEmpty()) {
+                return true;
+            }
+            // Retry only the batches which have not been sent.
+            entries.clear();
+            entries.addAll(failedEntries);
+            return false;
         }
 
-        private boolean append(List<PutRecordsRequestEntry> entries, int retryCount) {
-            if (retryCount > 3) {
-                StringBuilder sb = new StringBuilder("Could not append the Kinesis stream entry. Failed entries:");
-                for (PutRecordsRequestEntry entry : entries) {
-                    sb.append(System.lineSeparator()).append(entry.getData());
+        private List<PutRecordsRequestEntry> aggregate(List<PutRecordsRequestEntry> entries) {
+            List<PutRecordsRequestEntry> records = new ArrayList<PutRecordsRequestEntry>();
+            KplAggregator aggregator = new KplAggregator(MAX_RECORD_BYTES);
+            PutRecordsRequestEntry first = null;
+            for (PutRecordsRequestEntry entry : entries) {
+                if (KplAggregator.isAggregated(entry.getData()) || CompressionFrame.isCompressed(entry.getData())) {
+                    // Aggregated at the previous emission and then failed.
+                    records.add(entry);
+                    continue;
+                }
+                if (!aggregator.add(entry.getPartitionKey(), entry.getExplicitHashKey(), entry.getData())) {
+                    flush(aggregator, first, records);
+                    if (!aggregator.add(entry.getPartitionKey(), entry.getExplicitHashKey(), entry.getData())) {
+                        records.add(entry);
+                        continue;
+                    }
+                }
+                if (aggregator.count() == 1) {
+                    first = entry;
                 }
-                addError(sb.toString());
-                return true; // true to forcibly remove unexpected failed entries.
             }
-            try {
-                if (retryCount > 0) {
-                    Thread.sleep(1000 * retryCount);
+            flush(aggregator, first, records);
+            return records;
+        }
+
+        private void flush(KplAggregator aggregator, PutRecordsRequestEntry first, List<PutRecordsRequestEntry> records) {
+            if (aggregator.count() == 1) {
+                // Not worth aggregating a single record.
+                aggregator.build();
+                records.add(first);
+            } else if (aggregator.count() > 1) {
+                PutRecordsRequestEntry aggregated = new PutRecordsRequestEntry();
+                aggregated.setData(ByteBuffer.wrap(aggregator.build()));
+                aggregated.setPartitionKey(aggregator.partitionKey());
+                aggregated.setExplicitHashKey(aggregator.explicitHashKey());
+                records.add(aggregated);
+            }
+        }
+
+        private List<PutRecordsRequestEntry> compress(List<PutRecordsRequestEntry> entries) {
+            List<PutRecordsRequestEntry> records = new ArrayList<PutRecordsRequestEntry>(entries.size());
+            for (PutRecordsRequestEntry entry : entries) {
+                ByteBuffer data = entry.getData();
+                if (CompressionFrame.isCompressed(data)
+                        || (data.remaining() < compressionThreshold && !KplAggregator.isAggregated(data))) {
+                    records.add(entry);
+                    continue;
                 }
-                PutRecordsRequest putRecordsRequest  = new PutRecordsRequest();
-                putRecordsRequest.setStreamName(streamName);
-                putRecordsRequest.setRecords(entries);
-                PutRecordsResult putRecordsResult  = kinesis.putRecords(putRecordsRequest);
-                if (putRecordsResult.getFailedRecordCount() == 0) {
-                    return true;
+                try {
+                    byte[] compressed = CompressionFrame.compress(codec, data);
+                    if (compressed.length >= data.remaining()) {
+                        records.add(entry);
+                        continue;
+                    }
+                    records.add(new PutRecordsRequestEntry()
+                            .withData(ByteBuffer.wrap(compressed))
+                            .withPartitionKey(entry.getPartitionKey())
+                            .withExplicitHashKey(entry.getExplicitHashKey()));
+                } catch (IOException e) {
+                    addWarn("Could not compress the Kinesis stream entry.", e);
+                    records.add(entry);
                 }
-                if (putRecordsResult.getFailedRecordCount() == entries.size()) {
+            }
+            return records;
+        }
+
+        /**
+         * Split the entries into the batches within the limits of a PutRecords request.
+         */
+        List<List<PutRecordsRequestEntry>> split(List<PutRecordsRequestEntry> entries) {
+            List<List<PutRecordsRequestEntry>> batches = new ArrayList<List<PutRecordsRequestEntry>>();
+            List<PutRecordsRequestEntry> batch = new ArrayList<PutRecordsRequestEntry>();
+            long size = 0;
+            for (PutRecordsRequestEntry entry : entries) {
+                // The partition key is counted in the size limits as well.
+                int recordSize = entry.getData().remaining() + Utf8.length(entry.getPartitionKey());
+                if (recordSize > MAX_RECORD_BYTES) {
+                    addWarn("Could not send the entry to Kinesis because of the record size limit(<= 1 MiB). size = " + recordSize);
+                    continue;
+                }
+                if (batch.size() == MAX_BATCH_RECORDS || size + recordSize > MAX_BATCH_BYTES) {
+                    batches.add(batch);
+                    batch = new ArrayList<PutRecordsRequestEntry>();
+                    size = 0;
+                }
+                batch.add(entry);
+                size += recordSize;
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+            return batches;
+        }
+
+        private boolean put(List<PutRecordsRequestEntry> entries) {
+            try {
+                List<PutRecordsRequestEntry> failedEntries = send(entries);
+                if (!failedEntries.isEmpty() && failedEntries.size() == entries.size()) {
                     return false; // Leave it to logback retry mechanism.
                 }
-                // Retry
-                List<PutRecordsRequestEntry> failedEntries = new ArrayList<PutRecordsRequestEntry>(putRecordsResult.getFailedRecordCount());
-                for (int i = 0; i < entries.size(); i++) {
-                    PutRecordsResultEntry resultEntry = putRecordsResult.getRecords().get(i);
-                    if (resultEntry.getErrorCode() != null) {
-                        failedEntries.add(entries.get(i));
-                    }
-                    append(failedEntries, retryCount + 1);
+                if (!failedEntries.isEmpty()) {
+                    // Retry in the background, so that throttled shards do not hold the emitting thread.
+                    retryScheduler.retry(failedEntries);
                 }
             } catch (RuntimeException e) {
-                addError("Unexpected runtime error while appending kinesis entries.", e);
-            } catch (InterruptedException e) {
-                // pass
+                // Leave the entries to the emitter, which retries or spools them.
+                addWarn("Could not send " + entries.size()
+                        + " entries to Kinesis. They will be retried at the next emission.", e);
+                return false;
             }
             return true;
         }
+
+        @Override
+        public List<PutRecordsRequestEntry> send(List<PutRecordsRequestEntry> entries) {
+            PutRecordsRequest putRecordsRequest  = new PutRecordsRequest();
+            putRecordsRequest.setStreamName(streamName);
+            putRecordsRequest.setRecords(entries);
+            PutRecordsResult putRecordsResult  = kinesis.putRecords(putRecordsRequest);
+            if (putRecordsResult.getFailedRecordCount() == 0) {
+                return Collections.emptyList();
+            }
+            List<PutRecordsRequestEntry> failedEntries = new ArrayList<PutRecordsRequestEntry>(putRecordsResult.getFailedRecordCount());
+            for (int i = 0; i < entries.size(); i++) {
+                PutRecordsResultEntry resultEntry = putRecordsResult.getRecords().get(i);
+                if (resultEntry.getErrorCode() != null) {
+                    failedEntries.add(entries.get(i));
+                }
+            }
+            return failedEntries;
+        }
+
+        @Override
+        public void giveUp(List<PutRecordsRequestEntry> entries) {
+            StringBuilder sb = new StringBuilder("Could not append the Kinesis stream entry. Failed entries:");
+            for (PutRecordsRequestEntry entry : entries) {
+                sb.append(System.lineSeparator()).append(entry.getData());
+            }
+            addError(sb.toString());
+        }
     }
 
     public static class RandomPartitionKey implements PartitionKey<ILoggingEvent> {
@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs Kinesis records into a record of the KPL aggregated format, so that KCL and the other
+ * standard consumers de-aggregate them: the magic bytes, an <code>AggregatedRecord</code> protobuf
+ * message and the MD5 of the message.
+ * <p>
+ * KCL drops the records whose hash key falls outside the range of the shard which received the
+ * aggregated record, so every record is stamped with the explicit hash key of the aggregated record,
+ * as KPL does.
+ * <p>
+ * Not thread safe.
+ */
+final class KplAggregator {
+    private static final byte[] MAGIC = {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+    private static final int DIGEST_SIZE = 16;
+
+    // AggregatedRecord fields
+    private static final byte PARTITION_KEY_TABLE = 0x0A; // 1: repeated string
+    private static final byte EXPLICIT_HASH_KEY_TABLE = 0x12; // 2: repeated string
+    private static final byte RECORDS = 0x1A; // 3: repeated Record
+    // Record fields
+    private static final byte PARTITION_KEY_INDEX = 0x08; // 1: uint64
+    private static final byte EXPLICIT_HASH_KEY_INDEX = 0x10; // 2: uint64
+    private static final byte DATA = 0x1A; // 3: bytes
+
+    private final int maxBytes;
+    private final List<byte[]> partitionKeys = new ArrayList<byte[]>();
+    private final Map<String, Integer> partitionKeyIndexes = new HashMap<String, Integer>();
+    private final List<Record> records = new ArrayList<Record>();
+    private int messageSize;
+    private String partitionKey;
+    private String explicitHashKey;
+
+    /**
+     * @param maxBytes the max size of the aggregated record including its partition key
+     */
+    KplAggregator(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isAggregated(ByteBuffer data) {
+        if (data.remaining() < MAGIC.length + DIGEST_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(data.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the record does not fit in the aggregated record
+     */
+    boolean add(String partitionKey, String explicitHashKey, ByteBuffer data) {
+        int size = 0;
+        Integer partitionKeyIndex = partitionKeyIndexes.get(partitionKey);
+        byte[] partitionKeyBytes = null;
+        if (partitionKeyIndex == null) {
+            partitionKeyIndex = partitionKeys.size();
+            partitionKeyBytes = partitionKey.getBytes(StandardCharsets.UTF_8);
+            size += fieldSize(partitionKeyBytes.length);
+        }
+        String outerExplicitHashKey = this.explicitHashKey;
+        if (records.isEmpty()) {
+            outerExplicitHashKey = explicitHashKey != null ? explicitHashKey : hashKeyOf(partitionKey);
+            size += fieldSize(Utf8.length(outerExplicitHashKey));
+        }
+        Record record = new Record(partitionKeyIndex, data);
+        size += fieldSize(record.size());
+
+        String outerPartitionKey = records.isEmpty() ? partitionKey : this.partitionKey;
+        long total = (long) MAGIC.length + messageSize + size + DIGEST_SIZE + Utf8.length(outerPartitionKey);
+        if (total > maxBytes) {
+            return false;
+        }
+        if (records.isEmpty()) {
+            this.partitionKey = partitionKey;
+            this.explicitHashKey = outerExplicitHashKey;
+        }
+        if (partitionKeyBytes != null) {
+            partitionKeys.add(partitionKeyBytes);
+            partitionKeyIndexes.put(partitionKey, partitionKeyIndex);
+        }
+        records.add(record);
+        messageSize += size;
+        return true;
+    }
+
+    int count() {
+        return records.size();
+    }
+
+    /**
+     * @return the partition key of the aggregated record, which is the one of the first record
+     */
+    String partitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @return the explicit hash key of the aggregated record and all of its records, which is the one
+     *         of the first record or the hash of its partition key
+     */
+    String explicitHashKey() {
+        return explicitHashKey;
+    }
+
+    /**
+     * Build the aggregated record and clear the aggregator.
+     */
+    byte[] build() {
+        ByteBuffer out = ByteBuffer.allocate(MAGIC.length + messageSize + DIGEST_SIZE);
+        out.put(MAGIC);
+        for (byte[] key : partitionKeys) {
+            out.put(PARTITION_KEY_TABLE);
+            putBytes(out, key);
+        }
+        if (!records.isEmpty()) {
+            out.put(EXPLICIT_HASH_KEY_TABLE);
+            putBytes(out, explicitHashKey.getBytes(StandardCharsets.UTF_8));
+        }
+        for (Record record : records) {
+            out.put(RECORDS);
+            putVarint(out, record.size());
+            out.put(PARTITION_KEY_INDEX);
+            putVarint(out, record.partitionKeyIndex);
+            out.put(EXPLICIT_HASH_KEY_INDEX);
+            putVarint(out, 0);
+            out.put(DATA);
+            putVarint(out, record.data.remaining());
+            out.put(record.data.duplicate());
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md5.update(out.array(), MAGIC.length, messageSize);
+        out.put(md5.digest());
+        clear();
+        return out.array();
+    }
+
+    private void clear() {
+        partitionKeys.clear();
+        partitionKeyIndexes.clear();
+        records.clear();
+        messageSize = 0;
+        partitionKey = null;
+        explicitHashKey = null;
+    }
+
+    /**
+     * @return the hash key which Kinesis derives from the partition key, the MD5 of it as an unsigned
+     *         128-bit integer
+     */
+    static String hashKeyOf(String partitionKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(partitionKey.getBytes(StandardCharsets.UTF_8));
+            return new BigInteger(1, digest).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int fieldSize(int length) {
+        return 1 + varintSize(length) + length;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        putVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static final class Record {
+        private final int partitionKeyIndex;
+        private final ByteBuffer data;
+
+        private Record(int partitionKeyIndex, ByteBuffer data) {
+            this.partitionKeyIndex = partitionKeyIndex;
+            this.data = data;
+        }
+
+        private int size() {
+            // partition_key_index, explicit_hash_key_index(0) and data
+            return 1 + varintSize(partitionKeyIndex) + 2 + fieldSize(data.remaining());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+/**
+ * Serializes the fields of a record straight into a reusable MessagePack buffer. The values are
+ * packed as Fluency packs them: byte arrays and byte buffers as binary, maps as maps and collections
+ * as arrays.
+ * <p>
+ * Not thread safe, each thread uses its own packer.
+ */
+final class RecordPacker {
+    // Larger buffers are not kept by the thread.
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<RecordPacker> PACKER = new ThreadLocal<RecordPacker>() {
+        @Override
+        protected RecordPacker initialValue() {
+            return new RecordPacker();
+        }
+    };
+
+    // Serialized form of the repeated strings, shared by the threads.
+    static final EscapedStringCache<byte[]> STRINGS = new EscapedStringCache<byte[]>(1024);
+
+    private final FieldMap fields = new FieldMap(16);
+    private final MessageBufferPacker stringPacker = MessagePack.newDefaultBufferPacker();
+    private Buffer buffer = new Buffer();
+    private MessagePacker packer = MessagePack.newDefaultPacker(buffer);
+
+    static RecordPacker get() {
+        return PACKER.get();
+    }
+
+    /**
+     * @return the empty map to put the fields into
+     */
+    FieldMap fields() {
+        fields.clear();
+        return fields;
+    }
+
+    /**
+     * Pack the fields into the buffer.
+     *
+     * @return false if the fields have a value which can not be packed directly
+     */
+    boolean pack() throws IOException {
+        return pack(Collections.<String>emptySet());
+    }
+
+    /**
+     * Pack the fields into the buffer. The field names, and the values of the given fields, are packed
+     * from the cache of the serialized strings.
+     *
+     * @return false if the fields have a value which can not be packed directly
+     */
+    boolean pack(Set<String> cachedValueFields) throws IOException {
+        if (buffer.size() > MAX_RETAINED_BYTES) {
+            buffer = new Buffer();
+            packer = MessagePack.newDefaultPacker(buffer);
+        }
+        buffer.reset();
+        packer.clear();
+        packer.packMapHeader(fields.size());
+        for (int i = 0, l = fields.size(); i < l; i++) {
+            String key = fields.keyAt(i);
+            Object value = fields.valueAt(i);
+            packCachedString(key);
+            if (value instanceof String && cachedValueFields.contains(key)) {
+                packCachedString((String) value);
+            } else if (!packValue(value)) {
+                return false;
+            }
+        }
+        packer.flush();
+        return true;
+    }
+
+    private void packCachedString(String s) throws IOException {
+        byte[] packed = STRINGS.get(s);
+        if (packed == null) {
+            stringPacker.clear();
+            stringPacker.packString(s);
+            packed = stringPacker.toByteArray();
+            STRINGS.put(s, packed);
+        }
+        packer.writePayload(packed);
+    }
+
+    byte[] array() {
+        return buffer.array();
+    }
+
+    int size() {
+        return buffer.size();
+    }
+
+    private boolean packValue(Object value) throws IOException {
+        if (value == null) {
+            packer.packNil();
+        } else if (value instanceof String) {
+            packer.packString((String) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            packer.packBinaryHeader(bytes.length);
+            packer.writePayload(bytes);
+        } else if (value instanceof ByteBuffer && ((ByteBuffer) value).hasArray()) {
+            ByteBuffer buffer = (ByteBuffer) value;
+            packer.packBinaryHeader(buffer.remaining());
+            packer.writePayload(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            packer.packLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            packer.packDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            packer.packBigInteger((BigInteger) value);
+        } else if (value instanceof Boolean) {
+            packer.packBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            packer.packString(value.toString());
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            packer.packMapHeader(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!(entry.getKey() instanceof String)) {
+                    return false;
+                }
+                packer.packString((String) entry.getKey());
+                if (!packValue(entry.getValue())) {
+                    return false;
+                }
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            packer.packArrayHeader(collection.size());
+            for (Object element : collection) {
+                if (!packValue(element)) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
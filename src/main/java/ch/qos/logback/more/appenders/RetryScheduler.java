@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Retries the records which have failed on a background thread with capped exponential backoff and
+ * jitter, so that the emitting thread never waits for them. The number of records waiting for a
+ * retry is limited by the retry budget.
+ *
+ * @param <R> record type
+ */
+final class RetryScheduler<R> {
+    private final RetryTarget<R> target;
+    private final int maxRetries;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int budget;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger tasks = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor executor;
+    private ContextAware owner;
+
+    RetryScheduler(RetryTarget<R> target, int maxRetries, long initialDelay, long maxDelay, int budget) {
+        this.target = target;
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.budget = budget;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "logback-more-appenders-retry");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+    }
+
+    void setOwner(ContextAware owner) {
+        this.owner = owner;
+    }
+
+    void retry(List<R> records) {
+        schedule(records, 1);
+    }
+
+    private void schedule(final List<R> records, final int attempt) {
+        if (attempt > maxRetries) {
+            target.giveUp(records);
+            return;
+        }
+        if (waiting.addAndGet(records.size()) > budget) {
+            waiting.addAndGet(-records.size());
+            target.giveUp(records);
+            return;
+        }
+        tasks.incrementAndGet();
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        waiting.addAndGet(-records.size());
+                        List<R> failed;
+                        try {
+                            failed = target.send(records);
+                        } catch (RuntimeException e) {
+                            if (attempt == maxRetries) {
+                                addWarn("The last retry of " + records.size() + " records has failed.", e);
+                            }
+                            failed = records;
+                        }
+                        if (!failed.isEmpty()) {
+                            schedule(failed, attempt + 1);
+                        }
+                    } finally {
+                        tasks.decrementAndGet();
+                    }
+                }
+            }, delay(attempt), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            tasks.decrementAndGet();
+            waiting.addAndGet(-records.size());
+            target.giveUp(records);
+        }
+    }
+
+    private void addWarn(String msg, Throwable e) {
+        if (owner != null) {
+            owner.addWarn(msg, e);
+        }
+    }
+
+    private long delay(int attempt) {
+        long delay = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        // Half of the delay is randomized, so that the retries of the appenders do not hit the shards at once.
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Wait for the retries to complete, then stop. The records still failing after waitMillis are
+     * given up.
+     */
+    void shutdown(long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        try {
+            while (tasks.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    interface RetryTarget<R> {
+        /**
+         * @return the records which have failed
+         */
+        List<R> send(List<R> records);
+
+        void giveUp(List<R> records);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+/**
+ * Cache of the open shards of a Kinesis stream, refreshed in the background. It hands out the
+ * explicit hash keys of the shards round-robin. Every thread has its own cursor, so the threads
+ * never contend on it.
+ */
+final class ShardMap {
+    private static final long RETRY_INTERVAL = 1000;
+
+    private final ShardLister lister;
+    private final long refreshInterval;
+    private final ThreadLocal<int[]> cursor = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] {ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE)};
+        }
+    };
+    private volatile String[] hashKeys = new String[0];
+    private ScheduledExecutorService executor;
+    private ContextAware owner;
+    private boolean failing; // Accessed only by the refreshing thread.
+
+    ShardMap(ShardLister lister, long refreshInterval) {
+        this.lister = lister;
+        this.refreshInterval = refreshInterval;
+    }
+
+    void setOwner(ContextAware owner) {
+        this.owner = owner;
+    }
+
+    void start() {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread th = new Thread(r, "logback-more-appenders-shard-map");
+                th.setDaemon(true);
+                return th;
+            }
+        });
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = refresh();
+                try {
+                    executor.schedule(this, loaded ? refreshInterval : RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // Stopped while refreshing.
+                }
+            }
+        });
+    }
+
+    void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    boolean refresh() {
+        try {
+            List<String> shards = lister.listOpenShards();
+            if (shards == null || shards.isEmpty()) {
+                return false;
+            }
+            hashKeys = shards.toArray(new String[shards.size()]);
+            failing = false;
+            return true;
+        } catch (RuntimeException e) {
+            // Warn once until a refresh succeeds, it is retried every second.
+            if (!failing && owner != null) {
+                owner.addWarn("Could not list the shards. The explicit hash keys may not follow resharding.", e);
+            }
+            failing = true;
+            return false;
+        }
+    }
+
+    boolean isLoaded() {
+        return hashKeys.length > 0;
+    }
+
+    /**
+     * @return null until the shards are loaded
+     */
+    String nextExplicitHashKey() {
+        String[] keys = hashKeys;
+        if (keys.length == 0) {
+            return null;
+        }
+        int[] next = cursor.get();
+        int index = (next[0]++ & Integer.MAX_VALUE) % keys.length;
+        return keys[index];
+    }
+
+    interface ShardLister {
+        /**
+         * @return the starting hash keys of the open shards, or null if the stream is not ready
+         */
+        List<String> listOpenShards();
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Bounded cache of rendered stack traces. The throwables are keyed by their classes, messages and
+ * frames, so the same exception logged over and over is rendered only once.
+ * <p>
+ * A lookup hashes the frames in place and copies them only when the throwable is new. The entries
+ * live in a concurrent map, and the least recently used ones are evicted approximately with the
+ * second chance (CLOCK) algorithm, so the hits never take a lock.
+ */
+public final class StackTraceCache {
+    private final int maxSize;
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+    // The entries in the order of the eviction candidates.
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public StackTraceCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the entry of the throwable, which has no rendered stack trace yet if it is new
+     */
+    public Entry get(IThrowableProxy proxy) {
+        long hash = hash(proxy, 1125899906842597L);
+        Long key = Long.valueOf(hash);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Entry created = new Entry(key, parts(proxy));
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                clock.offer(created);
+                if (size.incrementAndGet() > maxSize) {
+                    evict();
+                }
+                return created;
+            }
+        }
+        if (match(proxy, entry.parts, 0) != entry.parts.length) {
+            // Another throwable with the same hash, leave the cached one.
+            return new Entry(key, null);
+        }
+        if (!entry.used) {
+            entry.used = true;
+        }
+        return entry;
+    }
+
+    private void evict() {
+        while (size.get() > maxSize) {
+            Entry entry = clock.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.used) {
+                // Used since it has been queued, give it a second chance.
+                entry.used = false;
+                clock.offer(entry);
+            } else if (entries.remove(entry.key, entry)) {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private static long hash(IThrowableProxy proxy, long hash) {
+        hash = 31 * hash + hashCode(proxy.getClassName());
+        hash = 31 * hash + hashCode(proxy.getMessage());
+        hash = 31 * hash + proxy.getCommonFrames();
+        StackTraceElementProxy[] frames = proxy.getStackTraceElementProxyArray();
+        hash = 31 * hash + frames.length;
+        for (StackTraceElementProxy frame : frames) {
+            hash = 31 * hash + hashCode(frame.getStackTraceElement());
+        }
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        hash = 31 * hash + (suppressed == null ? 0 : suppressed.length);
+        if (suppressed != null) {
+            for (IThrowableProxy s : suppressed) {
+                hash = hash(s, hash);
+            }
+        }
+        hash = 31 * hash + (proxy.getCause() != null ? 1 : 0);
+        if (proxy.getCause() != null) {
+            hash = hash(proxy.getCause(), hash);
+        }
+        return hash;
+    }
+
+    private static int hashCode(Object part) {
+        return part == null ? 0 : part.hashCode();
+    }
+
+    private static Object[] parts(IThrowableProxy proxy) {
+        List<Object> parts = new ArrayList<Object>();
+        collect(proxy, parts);
+        return parts.toArray();
+    }
+
+    private static void collect(IThrowableProxy proxy, List<Object> parts) {
+        parts.add(proxy.getClassName());
+        parts.add(proxy.getMessage());
+        parts.add(proxy.getCommonFrames());
+        StackTraceElementProxy[] frames = proxy.getStackTraceElementProxyArray();
+        parts.add(frames.length);
+        for (StackTraceElementProxy frame : frames) {
+            parts.add(frame.getStackTraceElement());
+        }
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        parts.add(suppressed == null ? 0 : suppressed.length);
+        if (suppressed != null) {
+            for (IThrowableProxy s : suppressed) {
+                collect(s, parts);
+            }
+        }
+        parts.add(proxy.getCause() != null);
+        if (proxy.getCause() != null) {
+            collect(proxy.getCause(), parts);
+        }
+    }
+
+    /**
+     * Compare the throwable with the parts collected from a throwable, without copying it.
+     *
+     * @return the index of the next part, or -1 if they differ
+     */
+    private static int match(IThrowableProxy proxy, Object[] parts, int i) {
+        StackTraceElementProxy[] frames = proxy.getStackTraceElementProxyArray();
+        if (parts.length - i < 6 + frames.length
+                || !equals(parts[i++], proxy.getClassName())
+                || !equals(parts[i++], proxy.getMessage())
+                || (Integer) parts[i++] != proxy.getCommonFrames()
+                || (Integer) parts[i++] != frames.length) {
+            return -1;
+        }
+        for (StackTraceElementProxy frame : frames) {
+            if (!equals(parts[i++], frame.getStackTraceElement())) {
+                return -1;
+            }
+        }
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if ((Integer) parts[i++] != (suppressed == null ? 0 : suppressed.length)) {
+            return -1;
+        }
+        if (suppressed != null) {
+            for (IThrowableProxy s : suppressed) {
+                i = match(s, parts, i);
+                if (i < 0) {
+                    return -1;
+                }
+            }
+        }
+        if (i >= parts.length || (Boolean) parts[i++] != (proxy.getCause() != null)) {
+            return -1;
+        }
+        return proxy.getCause() != null ? match(proxy.getCause(), parts, i) : i;
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public static final class Entry {
+        private final Long key;
+        private final Object[] parts;
+        private final String hash;
+        private final AtomicLong lastRendered = new AtomicLong(Long.MIN_VALUE);
+        private volatile String rendered;
+        private volatile boolean used;
+
+        Entry(Long key, Object[] parts) {
+            this.key = key;
+            this.parts = parts;
+            this.hash = Long.toHexString(key);
+        }
+
+        /**
+         * @return the fingerprint of the stack trace
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        public String getRendered() {
+            return rendered;
+        }
+
+        public void setRendered(String rendered) {
+            this.rendered = rendered;
+        }
+
+        /**
+         * Check if the full stack trace has been emitted within the window. If not, the timestamp is
+         * recorded as the time of the full stack trace.
+         */
+        public boolean isRepeated(long timestamp, long window) {
+            while (true) {
+                long last = lastRendered.get();
+                if (last != Long.MIN_VALUE && timestamp - last < window) {
+                    return true;
+                }
+                if (lastRendered.compareAndSet(last, timestamp)) {
+                    return false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+final class Utf8 {
+    // Larger buffers are not kept by the thread.
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<Decoder> DECODER = new ThreadLocal<Decoder>() {
+        @Override
+        protected Decoder initialValue() {
+            return new Decoder();
+        }
+    };
+
+    private Utf8() {
+    }
+
+    /**
+     * Decode the UTF-8 bytes through a per-thread decoder and buffer, so the String is the only
+     * allocation.
+     *
+     * @return null if the bytes are not valid UTF-8
+     */
+    static String decode(byte[] bytes, int offset, int length) {
+        return DECODER.get().decode(bytes, offset, length);
+    }
+
+    /**
+     * Count the UTF-8 encoded length without encoding. An unpaired surrogate counts as 1 byte because
+     * the JDK encoder replaces it with '?'.
+     */
+    static int length(CharSequence s) {
+        int length = 0;
+        for (int i = 0, l = s.length(); i < l; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static final class Decoder {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private CharBuffer buffer = CharBuffer.allocate(1024);
+
+        String decode(byte[] bytes, int offset, int length) {
+            // A UTF-8 byte never decodes to more than one char.
+            CharBuffer out = buffer;
+            if (out.capacity() < length) {
+                out = CharBuffer.allocate(length);
+                if (length <= MAX_RETAINED_CHARS) {
+                    buffer = out;
+                }
+            }
+            out.clear();
+            decoder.reset();
+            if (!decoder.decode(ByteBuffer.wrap(bytes, offset, length), out, true).isUnderflow()
+                    || !decoder.flush(out).isUnderflow()) {
+                return null;
+            }
+            return new String(out.array(), 0, out.position());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Format of the compressed records: the magic bytes <code>0xF5 0x4C 0x4D</code>, the id of the
+ * codec (1 byte) and the compressed data. 0xF5 never appears in UTF-8, so a consumer can tell the
+ * compressed records from the plain ones.
+ */
+public final class CompressionFrame {
+    private static final byte[] MAGIC = {(byte) 0xF5, 0x4C, 0x4D};
+    public static final int HEADER_SIZE = MAGIC.length + 1;
+
+    private CompressionFrame() {
+    }
+
+    public static boolean isCompressed(ByteBuffer data) {
+        if (data.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(data.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of the codec, or -1 if the data is not compressed
+     */
+    public static int codecId(ByteBuffer data) {
+        return isCompressed(data) ? data.get(data.position() + MAGIC.length) : -1;
+    }
+
+    public static byte[] compress(CompressionCodec codec, ByteBuffer data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + data.remaining() / 4);
+        bytes.write(MAGIC);
+        bytes.write(codec.getId());
+        OutputStream out = codec.compress(bytes);
+        Channels.newChannel(out).write(data.duplicate());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    public static byte[] decompress(CompressionCodec codec, byte[] data) throws IOException {
+        if (codecId(ByteBuffer.wrap(data)) != codec.getId()) {
+            throw new IOException("The data is not compressed by the codec: " + codec.getId());
+        }
+        InputStream in = codec.decompress(new ByteArrayInputStream(data, HEADER_SIZE, data.length - HEADER_SIZE));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) >= 0) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
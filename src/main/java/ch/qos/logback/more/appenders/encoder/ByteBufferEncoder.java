@@ -0,0 +1,21 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import java.nio.ByteBuffer;
+
+import ch.qos.logback.core.encoder.Encoder;
+
+/**
+ * Encoder which writes the encoded event into a buffer owned by the caller, so that the event is
+ * encoded without an intermediate String or byte array.
+ *
+ * @param <E> event type
+ */
+public interface ByteBufferEncoder<E> extends Encoder<E> {
+
+    /**
+     * Encode the event into the heap buffer, from the beginning of it.
+     *
+     * @return the buffer, or a larger one if the event does not fit, flipped to hold the encoded event
+     */
+    ByteBuffer encodeTo(E event, ByteBuffer buffer);
+}
@@ -0,0 +1,70 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream writing into a heap buffer, which grows when it is full. The buffer is either the
+ * stream's own scratch buffer or a buffer given by the caller.
+ */
+final class ByteBufferOutputStream extends OutputStream {
+    // Larger buffers are not kept by the thread.
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+
+    private ByteBuffer scratch;
+    private ByteBuffer buffer;
+
+    ByteBufferOutputStream(int capacity) {
+        this.scratch = ByteBuffer.allocate(capacity);
+        this.buffer = scratch;
+    }
+
+    /**
+     * Start writing into the target buffer, or into the scratch buffer if the target is null.
+     */
+    void reset(ByteBuffer target) {
+        buffer = target != null ? target : scratch;
+        buffer.clear();
+    }
+
+    /**
+     * @return the buffer flipped to hold the written bytes
+     */
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return a copy of the written bytes, keeping the buffer as the scratch buffer
+     */
+    byte[] toByteArray() {
+        byte[] bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), buffer.arrayOffset(), bytes, 0, bytes.length);
+        if (buffer.capacity() <= MAX_RETAINED_BYTES) {
+            scratch = buffer;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void write(int b) {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensure(len);
+        buffer.put(b, off, len);
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * CBOR encoder writing the events in the schema of {@link JacksonEncoderBase}. The fields of the
+ * schema are keyed by their integer ids by default, which makes the records much smaller than JSON.
+ * The keys of the MDC and the map markers remain strings.
+ */
+public class CborEncoder extends JacksonEncoderBase {
+    private boolean fieldIds = true;
+
+    public boolean isFieldIds() {
+        return fieldIds;
+    }
+
+    /**
+     * @param fieldIds true (default) to key the fields of the schema by the integer ids, false by the
+     *            names
+     */
+    public void setFieldIds(boolean fieldIds) {
+        this.fieldIds = fieldIds;
+    }
+
+    @Override
+    protected JsonFactory createFactory() {
+        return new CBORFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    protected void writeFieldName(JsonGenerator gen, int field) throws IOException {
+        if (fieldIds) {
+            gen.writeFieldId(field);
+        } else {
+            super.writeFieldName(gen, field);
+        }
+    }
+}
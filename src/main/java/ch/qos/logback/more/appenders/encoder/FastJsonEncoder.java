@@ -1,11 +1,18 @@
 package ch.qos.logback.more.appenders.encoder;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.qos.logback.classic.pattern.LevelConverter;
+import ch.qos.logback.classic.pattern.LoggerConverter;
+import ch.qos.logback.classic.pattern.ThreadConverter;
 import ch.qos.logback.classic.pattern.ThrowableHandlingConverter;
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.pattern.Converter;
 import ch.qos.logback.core.pattern.DynamicConverter;
-import ch.qos.logback.core.pattern.LiteralConverter;
+import ch.qos.logback.more.appenders.EscapedStringCache;
+import ch.qos.logback.more.appenders.StackTraceCache;
 
 /**
  * JSON encoder. It just escape meta characters of JSON not to lose performance. It doesn't handle
@@ -15,18 +22,80 @@ import ch.qos.logback.core.pattern.LiteralConverter;
  */
 public class FastJsonEncoder extends ReplacePatternLayoutEncoderBase {
 
-    private static final char[][] FROM = {{'\b'}, {'\f'}, {'\n'}, {'\r'}, {'\t'}, {'\"'}, {'\\'}};
-    private static final char[][] TO = {{'\\', 'b'}, {'\\', 'f'}, {'\\', 'n'}, {'\\', 'r'},
-            {'\\', 't'}, {'\\', '"'}, {'\\', '\\'}};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[][] FROM = new char[0x20 + 2][];
+    private static final char[][] TO = new char[0x20 + 2][];
+    static {
+        // The control characters, then the quote and the backslash.
+        for (char c = 0; c < 0x20; c++) {
+            FROM[c] = new char[] {c};
+            switch (c) {
+                case '\b':
+                    TO[c] = new char[] {'\\', 'b'};
+                    break;
+                case '\f':
+                    TO[c] = new char[] {'\\', 'f'};
+                    break;
+                case '\n':
+                    TO[c] = new char[] {'\\', 'n'};
+                    break;
+                case '\r':
+                    TO[c] = new char[] {'\\', 'r'};
+                    break;
+                case '\t':
+                    TO[c] = new char[] {'\\', 't'};
+                    break;
+                default:
+                    TO[c] = new char[] {'\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xF]};
+            }
+        }
+        FROM[0x20] = new char[] {'"'};
+        TO[0x20] = new char[] {'\\', '"'};
+        FROM[0x21] = new char[] {'\\'};
+        TO[0x21] = new char[] {'\\', '\\'};
+    }
 
     private static final ReplacePattern JSON_REPLACE_PATTERN = new ReplacePattern(FROM, TO);
 
+    private static final int ESCAPED_STRING_CACHE_SIZE = 256;
+
     private boolean compressSpace;
+    private int stackTraceCacheSize = 256;
+    private long stackTraceDedupWindow;
+    private StackTraceCache stackTraces;
+    // Escaped outputs of the converters, by converter.
+    private final ConcurrentMap<Converter<ILoggingEvent>, EscapedStringCache<String>> escapedStrings =
+            new ConcurrentHashMap<Converter<ILoggingEvent>, EscapedStringCache<String>>();
 
     public void setCompressSpace(boolean compressSpace) {
         this.compressSpace = compressSpace;
     }
 
+    /**
+     * Set the number of the escaped stack traces to cache.
+     *
+     * @param stackTraceCacheSize 256 by default, 0 to render every stack trace
+     */
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+        this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    /**
+     * Write only the hash of a stack trace in the "stacktrace_hash" field if the same stack trace has
+     * been written within the window. Requires the stack trace cache.
+     *
+     * @param stackTraceDedupWindow milliseconds, 0 (disabled) by default
+     */
+    public void setStackTraceDedupWindow(long stackTraceDedupWindow) {
+        this.stackTraceDedupWindow = stackTraceDedupWindow;
+    }
+
+    @Override
+    public void start() {
+        stackTraces = stackTraceCacheSize > 0 ? new StackTraceCache(stackTraceCacheSize) : null;
+        super.start();
+    }
+
     private final class JsonWriter implements Writer {
         @Override
         public void write(Converter<ILoggingEvent> converter, ILoggingEvent event, StringBuilder buf) {
@@ -36,6 +105,10 @@ public class FastJsonEncoder extends ReplacePatternLayoutEncoderBase {
                     if (event.getThrowableProxy() == null) {
                         return;
                     }
+                    if (stackTraces != null) {
+                        writeStackTrace(converter, event, buf);
+                        return;
+                    }
                     int closing = buf.lastIndexOf("}");
                     String closingStr = buf.substring(closing);
                     buf.delete(closing, buf.length()).append(",\"stacktrace\":\"");
@@ -45,44 +118,28 @@ public class FastJsonEncoder extends ReplacePatternLayoutEncoderBase {
                     buf.append("\"");
                     buf.append(closingStr);
                 } else {
+                    Object key = cacheKey(converter, event);
+                    EscapedStringCache<String> cache = key != null ? escapedStrings(converter) : null;
+                    if (cache != null) {
+                        String escaped = cache.get(key);
+                        if (escaped != null) {
+                            buf.append(escaped);
+                            return;
+                        }
+                    }
                     start = buf.length();
                     converter.write(buf, event);
                     end = buf.length();
+                    if (cache != null) {
+                        replace(buf, start, end);
+                        cache.put(key, buf.substring(start));
+                        return;
+                    }
                 }
 
                 if (end == start) {
                     return;
                 }
-                if (compressSpace) {
-                    if (converter instanceof LiteralConverter) {
-                        int spaceStart = -1, spaceEnd = -1, spaceRemoved = 0;
-                        boolean withinValue = false;
-                        for (int i = start + 1; i < end - spaceRemoved; i++) {
-                            char c = buf.charAt(i);
-                            if (!withinValue) {
-                              boolean space = c == '\r' || c == '\n' || c == ' ' || c == '\t';
-                              if (spaceStart == -1 && space) {
-                                spaceStart = i;
-                              } else if (spaceStart >= 0 && !space) {
-                                spaceEnd = i;
-                              }
-                              if (spaceEnd > spaceStart) {
-                                buf.delete(spaceStart, spaceEnd);
-                                spaceRemoved += spaceEnd - spaceStart;
-                                spaceStart = -1;
-                                spaceEnd = -1;
-                              }
-                            }
-                            if (c == '"' && buf.charAt(i - 1) != '\\') {
-                                withinValue = !withinValue;
-                                if (withinValue) {
-                                    spaceStart = -1;
-                                    spaceEnd = -1;
-                                }
-                            }
-                        }
-                    }
-                }
                 if (converter instanceof DynamicConverter) {
                     replace(buf, start, end);
                 }
@@ -93,6 +150,118 @@ public class FastJsonEncoder extends ReplacePatternLayoutEncoderBase {
         }
     }
 
+    /**
+     * @return the value which the output of the converter depends on, or null if the output is not
+     *         cached
+     */
+    private static Object cacheKey(Converter<ILoggingEvent> converter, ILoggingEvent event) {
+        if (converter instanceof LoggerConverter) {
+            return event.getLoggerName();
+        } else if (converter instanceof ThreadConverter) {
+            return event.getThreadName();
+        } else if (converter instanceof LevelConverter) {
+            return event.getLevel();
+        }
+        return null;
+    }
+
+    private EscapedStringCache<String> escapedStrings(Converter<ILoggingEvent> converter) {
+        EscapedStringCache<String> cache = escapedStrings.get(converter);
+        if (cache == null) {
+            cache = new EscapedStringCache<String>(ESCAPED_STRING_CACHE_SIZE);
+            EscapedStringCache<String> existing = escapedStrings.putIfAbsent(converter, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return the lookups of the escaped logger names, thread names and levels which have hit the cache
+     */
+    public long getEscapedStringCacheHits() {
+        long hits = 0;
+        for (EscapedStringCache<String> cache : escapedStrings.values()) {
+            hits += cache.getHits();
+        }
+        return hits;
+    }
+
+    public long getEscapedStringCacheMisses() {
+        long misses = 0;
+        for (EscapedStringCache<String> cache : escapedStrings.values()) {
+            misses += cache.getMisses();
+        }
+        return misses;
+    }
+
+    @Override
+    protected String prepareLiteral(String literal) {
+        return compressSpace ? compressSpace(literal) : literal;
+    }
+
+    /**
+     * Remove the spaces between the JSON tokens of a literal segment. The first character is kept as
+     * is because it may close the string value written before the literal.
+     */
+    static String compressSpace(String literal) {
+        StringBuilder buf = new StringBuilder(literal);
+        int spaceStart = -1, spaceEnd = -1;
+        boolean withinValue = false;
+        for (int i = 1; i < buf.length(); i++) {
+            char c = buf.charAt(i);
+            if (!withinValue) {
+                boolean space = c == '\r' || c == '\n' || c == ' ' || c == '\t';
+                if (spaceStart == -1 && space) {
+                    spaceStart = i;
+                } else if (spaceStart >= 0 && !space) {
+                    spaceEnd = i;
+                }
+                if (spaceEnd > spaceStart) {
+                    buf.delete(spaceStart, spaceEnd);
+                    i = spaceStart;
+                    spaceStart = -1;
+                    spaceEnd = -1;
+                }
+            }
+            if (c == '"' && buf.charAt(i - 1) != '\\') {
+                withinValue = !withinValue;
+                if (withinValue) {
+                    spaceStart = -1;
+                    spaceEnd = -1;
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    private void writeStackTrace(Converter<ILoggingEvent> converter, ILoggingEvent event, StringBuilder buf) {
+        StackTraceCache.Entry entry = stackTraces.get(event.getThrowableProxy());
+        int closing = buf.lastIndexOf("}");
+        String closingStr = buf.substring(closing);
+        buf.delete(closing, buf.length());
+        if (stackTraceDedupWindow > 0) {
+            buf.append(",\"stacktrace_hash\":\"").append(entry.getHash()).append('"');
+            if (entry.isRepeated(event.getTimeStamp(), stackTraceDedupWindow)) {
+                buf.append(closingStr);
+                return;
+            }
+        }
+        buf.append(",\"stacktrace\":\"");
+        String rendered = entry.getRendered();
+        if (rendered == null) {
+            int start = buf.length();
+            converter.write(buf, event);
+            replace(buf, start, buf.length());
+            entry.setRendered(buf.substring(start));
+        } else {
+            buf.append(rendered);
+        }
+        buf.append('"');
+        buf.append(closingStr);
+    }
+
     private final JsonWriter writer = new JsonWriter();
 
     @Override
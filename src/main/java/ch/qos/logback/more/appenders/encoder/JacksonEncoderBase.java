@@ -0,0 +1,271 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.encoder.EncoderBase;
+import ch.qos.logback.more.appenders.marker.MapMarker;
+
+/**
+ * Encoder writing the events in a fixed schema through a Jackson generator, into a per-thread
+ * buffer.
+ * <p>
+ * The schema is: timestamp, level, logger, thread, message, mdc, marker, markers (the contents of
+ * the map markers by their names) and exception (class, message, frames, commonFrames, suppressed
+ * and cause, where a frame has class, method, file and line).
+ */
+public abstract class JacksonEncoderBase extends EncoderBase<ILoggingEvent>
+        implements ByteBufferEncoder<ILoggingEvent> {
+    protected static final int TIMESTAMP = 0;
+    protected static final int LEVEL = 1;
+    protected static final int LOGGER = 2;
+    protected static final int THREAD = 3;
+    protected static final int MESSAGE = 4;
+    protected static final int MDC = 5;
+    protected static final int MARKER = 6;
+    protected static final int MARKERS = 7;
+    protected static final int EXCEPTION = 8;
+    protected static final int CLASS = 9;
+    protected static final int METHOD = 10;
+    protected static final int FILE = 11;
+    protected static final int LINE = 12;
+    protected static final int FRAMES = 13;
+    protected static final int COMMON_FRAMES = 14;
+    protected static final int SUPPRESSED = 15;
+    protected static final int CAUSE = 16;
+
+    private static final SerializedString[] FIELD_NAMES = {
+            new SerializedString("timestamp"), new SerializedString("level"), new SerializedString("logger"),
+            new SerializedString("thread"), new SerializedString("message"), new SerializedString("mdc"),
+            new SerializedString("marker"), new SerializedString("markers"), new SerializedString("exception"),
+            new SerializedString("class"), new SerializedString("method"), new SerializedString("file"),
+            new SerializedString("line"), new SerializedString("frames"), new SerializedString("commonFrames"),
+            new SerializedString("suppressed"), new SerializedString("cause")};
+
+    private final ThreadLocal<ByteBufferOutputStream> output = new ThreadLocal<ByteBufferOutputStream>() {
+        @Override
+        protected ByteBufferOutputStream initialValue() {
+            return new ByteBufferOutputStream(1024);
+        }
+    };
+    private JsonFactory factory;
+
+    protected abstract JsonFactory createFactory();
+
+    @Override
+    public void start() {
+        factory = createFactory();
+        super.start();
+    }
+
+    @Override
+    public byte[] headerBytes() {
+        return null;
+    }
+
+    @Override
+    public byte[] footerBytes() {
+        return null;
+    }
+
+    @Override
+    public byte[] encode(ILoggingEvent event) {
+        ByteBufferOutputStream out = output.get();
+        out.reset(null);
+        write(event, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public ByteBuffer encodeTo(ILoggingEvent event, ByteBuffer buffer) {
+        ByteBufferOutputStream out = output.get();
+        out.reset(buffer);
+        write(event, out);
+        return out.flip();
+    }
+
+    private void write(ILoggingEvent event, ByteBufferOutputStream out) {
+        try {
+            JsonGenerator gen = factory.createGenerator(out);
+            gen.writeStartObject();
+            writeFieldName(gen, TIMESTAMP);
+            gen.writeNumber(event.getTimeStamp());
+            writeFieldName(gen, LEVEL);
+            gen.writeString(event.getLevel().levelStr);
+            writeFieldName(gen, LOGGER);
+            gen.writeString(event.getLoggerName());
+            writeFieldName(gen, THREAD);
+            gen.writeString(event.getThreadName());
+            writeFieldName(gen, MESSAGE);
+            gen.writeString(event.getFormattedMessage());
+
+            Map<String, String> mdc = event.getMDCPropertyMap();
+            if (mdc != null && !mdc.isEmpty()) {
+                writeFieldName(gen, MDC);
+                gen.writeStartObject();
+                for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                    gen.writeStringField(entry.getKey(), entry.getValue());
+                }
+                gen.writeEndObject();
+            }
+            if (event.getMarker() != null) {
+                writeMarker(gen, event.getMarker());
+            }
+            if (event.getThrowableProxy() != null) {
+                writeFieldName(gen, EXCEPTION);
+                writeThrowable(gen, event.getThrowableProxy());
+            }
+            gen.writeEndObject();
+            gen.close();
+            writeTrailer(out);
+        } catch (IOException e) {
+            // The stream writes into memory, it never fails.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write the bytes following every event, e.g. a line separator. Nothing by default.
+     */
+    protected void writeTrailer(OutputStream out) throws IOException {
+    }
+
+    /**
+     * Write the name of a field of the schema.
+     */
+    protected void writeFieldName(JsonGenerator gen, int field) throws IOException {
+        gen.writeFieldName(FIELD_NAMES[field]);
+    }
+
+    private void writeMarker(JsonGenerator gen, Marker marker) throws IOException {
+        if (marker instanceof MapMarker) {
+            writeFieldName(gen, MARKERS);
+            gen.writeStartObject();
+            writeMapMarker(gen, (MapMarker) marker);
+            gen.writeEndObject();
+            return;
+        }
+        writeFieldName(gen, MARKER);
+        gen.writeString(marker.getName());
+        if (!marker.hasReferences()) {
+            return;
+        }
+        boolean started = false;
+        for (Iterator<Marker> iter = marker.iterator(); iter.hasNext();) {
+            Marker nestedMarker = iter.next();
+            if (nestedMarker instanceof MapMarker) {
+                if (!started) {
+                    writeFieldName(gen, MARKERS);
+                    gen.writeStartObject();
+                    started = true;
+                }
+                writeMapMarker(gen, (MapMarker) nestedMarker);
+            }
+        }
+        if (started) {
+            gen.writeEndObject();
+        }
+    }
+
+    private void writeMapMarker(JsonGenerator gen, MapMarker marker) throws IOException {
+        gen.writeFieldName(marker.getName() != null ? marker.getName() : "");
+        writeValue(gen, marker.getMap());
+    }
+
+    private void writeValue(JsonGenerator gen, Object value) throws IOException {
+        if (value == null) {
+            gen.writeNull();
+        } else if (value instanceof String) {
+            gen.writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            gen.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            gen.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof BigInteger) {
+            gen.writeNumber((BigInteger) value);
+        } else if (value instanceof BigDecimal) {
+            gen.writeNumber((BigDecimal) value);
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            gen.writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                gen.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(gen, entry.getValue());
+            }
+            gen.writeEndObject();
+        } else if (value instanceof Collection) {
+            gen.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                writeValue(gen, element);
+            }
+            gen.writeEndArray();
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+
+    private void writeThrowable(JsonGenerator gen, IThrowableProxy proxy) throws IOException {
+        gen.writeStartObject();
+        writeFieldName(gen, CLASS);
+        gen.writeString(proxy.getClassName());
+        if (proxy.getMessage() != null) {
+            writeFieldName(gen, MESSAGE);
+            gen.writeString(proxy.getMessage());
+        }
+        StackTraceElementProxy[] frames = proxy.getStackTraceElementProxyArray();
+        int commonFrames = proxy.getCommonFrames();
+        writeFieldName(gen, FRAMES);
+        gen.writeStartArray();
+        for (int i = 0; i < frames.length - commonFrames; i++) {
+            StackTraceElement frame = frames[i].getStackTraceElement();
+            gen.writeStartObject();
+            writeFieldName(gen, CLASS);
+            gen.writeString(frame.getClassName());
+            writeFieldName(gen, METHOD);
+            gen.writeString(frame.getMethodName());
+            if (frame.getFileName() != null) {
+                writeFieldName(gen, FILE);
+                gen.writeString(frame.getFileName());
+            }
+            writeFieldName(gen, LINE);
+            gen.writeNumber(frame.getLineNumber());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        if (commonFrames > 0) {
+            writeFieldName(gen, COMMON_FRAMES);
+            gen.writeNumber(commonFrames);
+        }
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null && suppressed.length > 0) {
+            writeFieldName(gen, SUPPRESSED);
+            gen.writeStartArray();
+            for (IThrowableProxy s : suppressed) {
+                writeThrowable(gen, s);
+            }
+            gen.writeEndArray();
+        }
+        if (proxy.getCause() != null) {
+            writeFieldName(gen, CAUSE);
+            writeThrowable(gen, proxy.getCause());
+        }
+        gen.writeEndObject();
+    }
+}
@@ -0,0 +1,18 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * MessagePack encoder writing the events in the schema of {@link JacksonEncoderBase}, keyed by the
+ * field names.
+ */
+public class MessagePackEncoder extends JacksonEncoderBase {
+
+    @Override
+    protected JsonFactory createFactory() {
+        return new MessagePackFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+}
@@ -1,14 +1,26 @@
 package ch.qos.logback.more.appenders.encoder;
 
-import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Context;
 import ch.qos.logback.core.pattern.Converter;
 import ch.qos.logback.core.pattern.FormattingConverter;
-import ch.qos.logback.core.pattern.PatternLayoutBase;
+import ch.qos.logback.core.pattern.LiteralConverter;
 import ch.qos.logback.core.pattern.PatternLayoutEncoderBase;
+import ch.qos.logback.core.pattern.PostCompileProcessor;
 
-public abstract class ReplacePatternLayoutEncoderBase extends PatternLayoutEncoderBase<ILoggingEvent> {
+public abstract class ReplacePatternLayoutEncoderBase extends PatternLayoutEncoderBase<ILoggingEvent>
+        implements ByteBufferEncoder<ILoggingEvent> {
+    // Larger buffers are not kept by the thread.
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
 
     public interface Writer {
         void write(Converter<ILoggingEvent> converter, ILoggingEvent event, StringBuilder buf);
@@ -18,10 +30,27 @@ public abstract class ReplacePatternLayoutEncoderBase extends PatternLayoutEncod
 
         private final char[][] from;
         private final char[][] to;
+        // Replacement indexed by the character, or null if a pattern is not a single ASCII character or a
+        // replacement is empty.
+        private final char[][] table;
 
         public ReplacePattern(char[][] from, char[][] to) {
             this.from = from;
             this.to = to;
+            this.table = compile(from, to);
+        }
+
+        private static char[][] compile(char[][] from, char[][] to) {
+            char[][] table = new char[128][];
+            for (int i = 0; i < from.length; i++) {
+                if (from[i].length != 1 || from[i][0] >= table.length || to[i].length == 0) {
+                    return null;
+                }
+                if (table[from[i][0]] == null) {
+                    table[from[i][0]] = to[i];
+                }
+            }
+            return table;
         }
     }
 
@@ -30,28 +59,161 @@ public abstract class ReplacePatternLayoutEncoderBase extends PatternLayoutEncod
 
     private char[][] from;
     private char[][] to;
+    private char[][] table;
+    private final ThreadLocal<EncodeBuffer> encodeBuffer = new ThreadLocal<EncodeBuffer>() {
+        @Override
+        protected EncodeBuffer initialValue() {
+            return new EncodeBuffer(getCharset() != null ? getCharset() : Charset.defaultCharset());
+        }
+    };
 
     @Override
     public void start() {
         ReplacePattern replacePattern = getReplacePattern();
         this.from = replacePattern.from;
         this.to = replacePattern.to;
+        this.table = replacePattern.table;
         ReplacePatternLayout patternLayout =
                 new ReplacePatternLayout(getWriter());
         patternLayout.setContext(context);
         patternLayout.setPattern(getPattern());
         patternLayout.setOutputPatternAsHeader(outputPatternAsHeader);
         patternLayout.start();
+        patternLayout.prepareLiterals(this);
         this.layout = patternLayout;
         super.start();
     }
 
+    /**
+     * Prepare a literal segment of the pattern once at start. The literals which are changed here are
+     * appended as is for every event, without calling the {@link Writer}. The others are written through
+     * the {@link Writer} like the other converters.
+     *
+     * @return the literal to write for every event
+     */
+    protected String prepareLiteral(String literal) {
+        return literal;
+    }
+
     @Override
     public byte[] encode(ILoggingEvent event) {
         return super.encode(event);
     }
 
+    @Override
+    public ByteBuffer encodeTo(ILoggingEvent event, ByteBuffer buffer) {
+        if (!(layout instanceof ReplacePatternLayout) || !layout.isStarted()) {
+            byte[] bytes = encode(event);
+            buffer = buffer.capacity() < bytes.length ? ByteBuffer.allocate(bytes.length) : buffer;
+            buffer.clear();
+            buffer.put(bytes).flip();
+            return buffer;
+        }
+        EncodeBuffer encodeBuffer = this.encodeBuffer.get();
+        StringBuilder chars = encodeBuffer.chars();
+        ((ReplacePatternLayout) layout).writeTo(event, chars);
+        return encodeBuffer.encode(chars, buffer);
+    }
+
+    /**
+     * Per-thread buffers to encode the laid out event.
+     */
+    private static final class EncodeBuffer {
+        private final CharsetEncoder encoder;
+        private StringBuilder chars = new StringBuilder(256);
+        private char[] array = new char[256];
+
+        EncodeBuffer(Charset charset) {
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        StringBuilder chars() {
+            if (chars.capacity() > MAX_RETAINED_CHARS) {
+                chars = new StringBuilder(256);
+            }
+            chars.setLength(0);
+            return chars;
+        }
+
+        ByteBuffer encode(StringBuilder chars, ByteBuffer out) {
+            int length = chars.length();
+            char[] array = this.array;
+            if (array.length < length) {
+                array = new char[length];
+                if (length <= MAX_RETAINED_CHARS) {
+                    this.array = array;
+                }
+            }
+            chars.getChars(0, length, array, 0);
+            CharBuffer in = CharBuffer.wrap(array, 0, length);
+            out.clear();
+            encoder.reset();
+            while (encoder.encode(in, out, true).isOverflow()) {
+                out = grow(out, (int) (in.remaining() * encoder.maxBytesPerChar()));
+            }
+            while (encoder.flush(out).isOverflow()) {
+                out = grow(out, 16);
+            }
+            out.flip();
+            return out;
+        }
+
+        private static ByteBuffer grow(ByteBuffer out, int required) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + required));
+            out.flip();
+            grown.put(out);
+            return grown;
+        }
+    }
+
     public void replace(StringBuilder buff, int start, int end) {
+        if (table == null) {
+            replaceEach(buff, start, end);
+            return;
+        }
+        // Skip the characters which need no replacement.
+        int i = start;
+        while (i < end) {
+            char c = buff.charAt(i);
+            if (c < table.length && table[c] != null) {
+                break;
+            }
+            i++;
+        }
+        if (i == end) {
+            return;
+        }
+        int extra = 0;
+        for (int k = i; k < end; k++) {
+            char c = buff.charAt(k);
+            if (c < table.length && table[c] != null) {
+                extra += table[c].length - 1;
+            }
+        }
+        int length = buff.length();
+        buff.setLength(length + extra);
+        for (int k = length - 1; k >= end; k--) {
+            buff.setCharAt(k + extra, buff.charAt(k));
+        }
+        // Rewrite the range from the first replaced character backwards in place, so that every character is
+        // read before it is overwritten.
+        int w = end + extra;
+        for (int k = end - 1; k >= i; k--) {
+            char c = buff.charAt(k);
+            char[] replacement = c < table.length ? table[c] : null;
+            if (replacement == null) {
+                buff.setCharAt(--w, c);
+            } else {
+                for (int m = replacement.length - 1; m >= 0; m--) {
+                    buff.setCharAt(--w, replacement[m]);
+                }
+            }
+        }
+    }
+
+    private void replaceEach(StringBuilder buff, int start, int end) {
         int modified = 0;
         CHARS: for (int i = start; i < end + modified; i++) {
             FROM: for (int j = 0; j < from.length; j++) {
@@ -78,35 +240,66 @@ public abstract class ReplacePatternLayoutEncoderBase extends PatternLayoutEncod
     protected static class ReplacePatternLayout extends PatternLayout {
         Converter<ILoggingEvent> head;
         private Writer writer;
+        private Converter<ILoggingEvent>[] converters;
+        // The prepared literal of each converter, null for the converters written through the writer.
+        private String[] literals;
 
         public ReplacePatternLayout(Writer writer) {
             this.writer = writer;
+            // Keep the head of the converters compiled by start(), so that the layout walks them itself.
+            final PostCompileProcessor<ILoggingEvent> processor = postCompileProcessor;
+            this.postCompileProcessor = new PostCompileProcessor<ILoggingEvent>() {
+                @Override
+                public void process(Context context, Converter<ILoggingEvent> head) {
+                    if (processor != null) {
+                        processor.process(context, head);
+                    }
+                    ReplacePatternLayout.this.head = head;
+                }
+            };
         }
 
         @SuppressWarnings("unchecked")
         @Override
         public void start() {
             super.start();
-            try {
-                Field headField = PatternLayoutBase.class.getDeclaredField("head");
-                headField.setAccessible(true);
-                head = (Converter<ILoggingEvent>) headField.get(this);
-                headField.setAccessible(false);
-            } catch (Exception e) {
-                throw new RuntimeException("Please raise the issue.", e);
+            List<Converter<ILoggingEvent>> chain = new ArrayList<Converter<ILoggingEvent>>();
+            for (Converter<ILoggingEvent> c = head; c != null; c = c.getNext()) {
+                chain.add(c);
+            }
+            converters = chain.toArray(new Converter[chain.size()]);
+            literals = new String[converters.length];
+        }
+
+        void prepareLiterals(ReplacePatternLayoutEncoderBase encoder) {
+            if (literals == null) {
+                return;
+            }
+            for (int i = 0; i < converters.length; i++) {
+                if (converters[i] instanceof LiteralConverter) {
+                    String literal = converters[i].convert(null);
+                    String prepared = encoder.prepareLiteral(literal);
+                    // Keep the writer in charge of the literals which are not changed.
+                    literals[i] = prepared.equals(literal) ? null : prepared;
+                }
             }
         }
 
         @Override
         protected String writeLoopOnConverters(ILoggingEvent event) {
-            super.writeLoopOnConverters(event);
             StringBuilder buf = new StringBuilder(256);
-            Converter<ILoggingEvent> c = head;
-            while (c != null) {
-                writer.write(c, event, buf);
-                c = c.getNext();
-            }
+            writeTo(event, buf);
             return buf.toString();
         }
+
+        void writeTo(ILoggingEvent event, StringBuilder buf) {
+            for (int i = 0; i < converters.length; i++) {
+                if (literals[i] != null) {
+                    buf.append(literals[i]);
+                } else {
+                    writer.write(converters[i], event, buf);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,46 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import ch.qos.logback.core.CoreConstants;
+
+/**
+ * JSON encoder writing the events in a fixed schema with a streaming Jackson generator. Unlike
+ * {@link FastJsonEncoder} it takes no pattern, and the output is valid JSON by construction.
+ *
+ * @see JacksonEncoderBase
+ */
+public class StructuredJsonEncoder extends JacksonEncoderBase {
+    private static final byte[] LINE_SEPARATOR = CoreConstants.LINE_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+
+    private boolean lineSeparator = true;
+
+    public boolean isLineSeparator() {
+        return lineSeparator;
+    }
+
+    /**
+     * @param lineSeparator true (default) to end every event with the line separator, so that the
+     *            output is one JSON object per line
+     */
+    public void setLineSeparator(boolean lineSeparator) {
+        this.lineSeparator = lineSeparator;
+    }
+
+    @Override
+    protected JsonFactory createFactory() {
+        return new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    protected void writeTrailer(OutputStream out) throws IOException {
+        if (lineSeparator) {
+            out.write(LINE_SEPARATOR);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.amazonaws.services.logs.AbstractAWSLogs;
+import com.amazonaws.services.logs.model.AWSLogsException;
+import com.amazonaws.services.logs.model.DescribeLogGroupsRequest;
+import com.amazonaws.services.logs.model.DescribeLogGroupsResult;
+import com.amazonaws.services.logs.model.InputLogEvent;
+import com.amazonaws.services.logs.model.LogGroup;
+import com.amazonaws.services.logs.model.PutLogEventsRequest;
+import com.amazonaws.services.logs.model.PutLogEventsResult;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.CloudWatchLogbackAppender.SizedLogEvent;
+
+public class CloudWatchLogbackAppenderTest {
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    static class FakeAWSLogs extends AbstractAWSLogs {
+        final List<List<Long>> requests = new ArrayList<List<Long>>();
+        final Set<Integer> failures = new HashSet<Integer>();
+
+        @Override
+        public DescribeLogGroupsResult describeLogGroups(DescribeLogGroupsRequest request) {
+            return new DescribeLogGroupsResult().withLogGroups(new LogGroup().withLogGroupName("group"));
+        }
+
+        @Override
+        public PutLogEventsResult putLogEvents(PutLogEventsRequest request) {
+            List<Long> timestamps = new ArrayList<Long>();
+            for (InputLogEvent event : request.getLogEvents()) {
+                timestamps.add(event.getTimestamp());
+            }
+            requests.add(timestamps);
+            if (failures.contains(requests.size() - 1)) {
+                throw new AWSLogsException("Service unavailable");
+            }
+            return new PutLogEventsResult().withNextSequenceToken(String.valueOf(requests.size()));
+        }
+    }
+
+    private static CloudWatchLogbackAppender<ILoggingEvent> appender(FakeAWSLogs awsLogs) {
+        CloudWatchLogbackAppender<ILoggingEvent> appender = new CloudWatchLogbackAppender<ILoggingEvent>();
+        appender.setContext(new LoggerContext());
+        appender.setLogGroupName("group");
+        appender.setLogStreamName("stream");
+        appender.setAwsLogs(awsLogs);
+        return appender;
+    }
+
+    private static SizedLogEvent event(long timestamp, int size) {
+        return new SizedLogEvent(new InputLogEvent().withTimestamp(timestamp).withMessage("message"), size);
+    }
+
+    private static List<SizedLogEvent> events(long... timestamps) {
+        List<SizedLogEvent> events = new ArrayList<SizedLogEvent>();
+        for (long timestamp : timestamps) {
+            events.add(event(timestamp, 33));
+        }
+        return events;
+    }
+
+    private static List<Integer> sizes(List<List<SizedLogEvent>> batches) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<SizedLogEvent> batch : batches) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void splitByBytes() {
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(new FakeAWSLogs());
+        // 1,048,576 bytes including the 26 bytes of each event fit in a batch.
+        List<SizedLogEvent> events = Arrays.asList(event(0, 524288), event(0, 524288), event(0, 27));
+        assertEquals(Arrays.asList(2, 1), sizes(appender.split(events)));
+
+        events = Arrays.asList(event(0, 524288), event(0, 524289), event(0, 27));
+        assertEquals(Arrays.asList(1, 2), sizes(appender.split(events)));
+    }
+
+    @Test
+    public void splitByEventCount() {
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(new FakeAWSLogs());
+        List<SizedLogEvent> events = new ArrayList<SizedLogEvent>();
+        for (int i = 0; i < 10001; i++) {
+            events.add(event(0, 27));
+        }
+        assertEquals(Arrays.asList(10000, 1), sizes(appender.split(events)));
+
+        appender.setMaxEventCount(3);
+        assertEquals(Arrays.asList(3, 3, 1), sizes(appender.split(events.subList(0, 7))));
+    }
+
+    @Test
+    public void splitBySpan() {
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(new FakeAWSLogs());
+        // The events of a batch must not span more than 24 hours.
+        assertEquals(Arrays.asList(2, 2), sizes(appender.split(events(0, DAY, DAY + 1, 2 * DAY + 1))));
+    }
+
+    @Test
+    public void sortChronologically() {
+        FakeAWSLogs awsLogs = new FakeAWSLogs();
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(awsLogs);
+        assertTrue(appender.new CloudWatchIntervalAppender().append(events(3, 1, 2)));
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L, 3L)), awsLogs.requests);
+    }
+
+    @Test
+    public void keepSourceTimestamp() {
+        FakeAWSLogs awsLogs = new FakeAWSLogs();
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(awsLogs);
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage("message");
+        event.setTimeStamp(1234);
+        List<SizedLogEvent> events = new ArrayList<SizedLogEvent>();
+        events.add(appender.newEventMapper().map(event));
+        assertTrue(appender.new CloudWatchIntervalAppender().append(events));
+        assertEquals(Arrays.asList(Arrays.asList(1234L)), awsLogs.requests);
+    }
+
+    @Test
+    public void retryUnsentEvents() {
+        FakeAWSLogs awsLogs = new FakeAWSLogs();
+        awsLogs.failures.add(1);
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(awsLogs);
+        appender.setMaxEventCount(2);
+        CloudWatchLogbackAppender<ILoggingEvent>.CloudWatchIntervalAppender intervalAppender =
+                appender.new CloudWatchIntervalAppender();
+
+        // The second batch fails, only its events are left to the emitter.
+        List<SizedLogEvent> events = events(1, 2, 3, 4);
+        assertFalse(intervalAppender.append(events));
+        assertEquals(2, events.size());
+
+        assertTrue(intervalAppender.append(events));
+        assertEquals(Arrays.asList(Arrays.asList(1L, 2L), Arrays.asList(3L, 4L), Arrays.asList(3L, 4L)),
+                awsLogs.requests);
+    }
+
+    @Test
+    public void retryAllEventsIfTheFirstBatchFails() {
+        FakeAWSLogs awsLogs = new FakeAWSLogs();
+        awsLogs.failures.add(0);
+        CloudWatchLogbackAppender<ILoggingEvent> appender = appender(awsLogs);
+        List<SizedLogEvent> events = events(2, 1);
+        assertFalse(appender.new CloudWatchIntervalAppender().append(events));
+        assertEquals(2, events.size());
+        assertEquals(Collections.singletonList(Arrays.asList(1L, 2L)), awsLogs.requests);
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.AwsAppenderV2.AwsConfig;
+import ch.qos.logback.more.appenders.CloudWatchLogbackAppenderV2.SizedLogEvent;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsAsyncClient;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
+import software.amazon.awssdk.services.cloudwatchlogs.model.CloudWatchLogsException;
+import software.amazon.awssdk.services.cloudwatchlogs.model.DescribeLogGroupsRequest;
+import software.amazon.awssdk.services.cloudwatchlogs.model.DescribeLogGroupsResponse;
+import software.amazon.awssdk.services.cloudwatchlogs.model.DescribeLogStreamsRequest;
+import software.amazon.awssdk.services.cloudwatchlogs.model.DescribeLogStreamsResponse;
+import software.amazon.awssdk.services.cloudwatchlogs.model.InputLogEvent;
+import software.amazon.awssdk.services.cloudwatchlogs.model.LogGroup;
+import software.amazon.awssdk.services.cloudwatchlogs.model.LogStream;
+import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsRequest;
+import software.amazon.awssdk.services.cloudwatchlogs.model.PutLogEventsResponse;
+
+public class CloudWatchLogbackAppenderV2Test {
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private static DescribeLogGroupsResponse logGroups() {
+        return DescribeLogGroupsResponse.builder().logGroups(LogGroup.builder().logGroupName("group").build()).build();
+    }
+
+    private static DescribeLogStreamsResponse logStreams(DescribeLogStreamsRequest request) {
+        return DescribeLogStreamsResponse.builder()
+                .logStreams(LogStream.builder().logStreamName(request.logStreamNamePrefix()).build()).build();
+    }
+
+    private static String describe(PutLogEventsRequest request) {
+        StringBuilder sb = new StringBuilder(request.logStreamName()).append(':');
+        for (InputLogEvent event : request.logEvents()) {
+            sb.append(' ').append(event.timestamp());
+        }
+        return sb.toString();
+    }
+
+    static class FakeClient implements CloudWatchLogsClient {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final Set<Integer> failures = new HashSet<Integer>();
+
+        @Override
+        public String serviceName() {
+            return "logs";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public DescribeLogGroupsResponse describeLogGroups(DescribeLogGroupsRequest request) {
+            return logGroups();
+        }
+
+        @Override
+        public DescribeLogStreamsResponse describeLogStreams(DescribeLogStreamsRequest request) {
+            return logStreams(request);
+        }
+
+        @Override
+        public PutLogEventsResponse putLogEvents(PutLogEventsRequest request) {
+            requests.add(describe(request));
+            if (failures.contains(requests.size() - 1)) {
+                throw CloudWatchLogsException.builder().message("Service unavailable").build();
+            }
+            return PutLogEventsResponse.builder().nextSequenceToken(String.valueOf(requests.size())).build();
+        }
+    }
+
+    static class FakeAsyncClient implements CloudWatchLogsAsyncClient {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        // The responses of the next requests, the others succeed at once.
+        final Queue<CompletableFuture<PutLogEventsResponse>> responses =
+                new LinkedList<CompletableFuture<PutLogEventsResponse>>();
+
+        @Override
+        public String serviceName() {
+            return "logs";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public CompletableFuture<DescribeLogGroupsResponse> describeLogGroups(DescribeLogGroupsRequest request) {
+            return CompletableFuture.completedFuture(logGroups());
+        }
+
+        @Override
+        public CompletableFuture<DescribeLogStreamsResponse> describeLogStreams(DescribeLogStreamsRequest request) {
+            return CompletableFuture.completedFuture(logStreams(request));
+        }
+
+        @Override
+        public synchronized CompletableFuture<PutLogEventsResponse> putLogEvents(PutLogEventsRequest request) {
+            requests.add(describe(request));
+            CompletableFuture<PutLogEventsResponse> response = responses.poll();
+            return response != null ? response
+                    : CompletableFuture.completedFuture(PutLogEventsResponse.builder().build());
+        }
+    }
+
+    private static CloudWatchLogbackAppenderV2<ILoggingEvent> appender() {
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = new CloudWatchLogbackAppenderV2<ILoggingEvent>();
+        appender.setContext(new LoggerContext());
+        appender.setAwsConfig(new AwsConfig());
+        appender.setLogGroupName("group");
+        appender.setLogStreamName("stream");
+        return appender;
+    }
+
+    private static CloudWatchLogbackAppenderV2<ILoggingEvent> asyncAppender(FakeAsyncClient client) {
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = appender();
+        appender.setAsyncClient(true);
+        appender.setAwsLogsAsync(client);
+        appender.setEmitInterval(60 * 60 * 1000);
+        return appender;
+    }
+
+    private static List<SizedLogEvent> events(long... timestamps) {
+        List<SizedLogEvent> events = new ArrayList<SizedLogEvent>();
+        for (long timestamp : timestamps) {
+            events.add(new SizedLogEvent(InputLogEvent.builder().timestamp(timestamp).message("message").build(), 33));
+        }
+        return events;
+    }
+
+    private static LoggingEvent loggingEvent(long timestamp) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage("message");
+        event.setTimeStamp(timestamp);
+        return event;
+    }
+
+    private static List<Integer> sizes(List<List<SizedLogEvent>> batches) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<SizedLogEvent> batch : batches) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void split() {
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = appender();
+        List<SizedLogEvent> events = events(0, 0, DAY, DAY + 1);
+        assertEquals(Arrays.asList(3, 1), sizes(appender.split(events)));
+
+        List<SizedLogEvent> large = new ArrayList<SizedLogEvent>();
+        large.add(new SizedLogEvent(InputLogEvent.builder().timestamp(0L).message("message").build(), 1048576 - 26));
+        large.addAll(events(0, 0));
+        assertEquals(Arrays.asList(1, 2), sizes(appender.split(large)));
+
+        appender.setMaxEventCount(3);
+        assertEquals(Arrays.asList(3, 1), sizes(appender.split(events(0, 0, 0, 0))));
+    }
+
+    @Test
+    public void rotateShardsAcrossEmissions() {
+        FakeClient client = new FakeClient();
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = appender();
+        appender.setLogStreamCount(3);
+        appender.setAwsLogs(client);
+        CloudWatchLogbackAppenderV2<ILoggingEvent>.CloudWatchIntervalAppender intervalAppender =
+                appender.new CloudWatchIntervalAppender();
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(intervalAppender.append(events(i)));
+        }
+        assertEquals(Arrays.asList("stream-0: 1", "stream-1: 2", "stream-2: 3", "stream-0: 4"), client.requests);
+    }
+
+    @Test
+    public void retryFailedBatches() {
+        FakeClient client = new FakeClient();
+        client.failures.add(1);
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = appender();
+        appender.setMaxEventCount(2);
+        appender.setAwsLogs(client);
+        CloudWatchLogbackAppenderV2<ILoggingEvent>.CloudWatchIntervalAppender intervalAppender =
+                appender.new CloudWatchIntervalAppender();
+
+        List<SizedLogEvent> events = events(4, 3, 2, 1);
+        assertFalse(intervalAppender.append(events));
+        assertEquals(2, events.size());
+        assertTrue(intervalAppender.append(events));
+        assertEquals(Arrays.asList("stream: 1 2", "stream: 3 4", "stream: 3 4"), client.requests);
+    }
+
+    @Test(timeout = 10000)
+    public void retryFailedAsyncRequests() {
+        FakeAsyncClient client = new FakeAsyncClient();
+        CompletableFuture<PutLogEventsResponse> failure = new CompletableFuture<PutLogEventsResponse>();
+        client.responses.add(failure);
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = asyncAppender(client);
+        appender.setMaxBatchEvents(1);
+        appender.start();
+
+        appender.doAppend(loggingEvent(1));
+        failure.completeExceptionally(CloudWatchLogsException.builder().message("Service unavailable").build());
+        // The failed event is back in the emitter, which holds it until the next emission.
+        appender.doAppend(loggingEvent(2));
+        assertEquals(Arrays.asList("stream: 1"), client.requests);
+
+        appender.stop();
+        assertEquals(Arrays.asList("stream: 1", "stream: 1 2"), client.requests);
+    }
+
+    @Test(timeout = 10000)
+    public void limitInFlightRequestsWithoutBlocking() {
+        FakeAsyncClient client = new FakeAsyncClient();
+        CompletableFuture<PutLogEventsResponse> inFlight = new CompletableFuture<PutLogEventsResponse>();
+        client.responses.add(inFlight);
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = asyncAppender(client);
+        appender.setMaxInFlightRequests(1);
+        appender.setMaxEventCount(1);
+        appender.setMaxBatchEvents(2);
+        appender.start();
+
+        appender.doAppend(loggingEvent(1));
+        appender.doAppend(loggingEvent(2));
+        // Emits the 2 events, which wait for the next emission because of the outstanding request.
+        appender.doAppend(loggingEvent(3));
+        assertEquals(Arrays.asList("stream: 1"), client.requests);
+
+        inFlight.complete(PutLogEventsResponse.builder().build());
+        appender.stop();
+        assertEquals(Arrays.asList("stream: 1", "stream: 2", "stream: 3"), client.requests);
+    }
+
+    @Test(timeout = 10000)
+    public void drainOnStop() throws Exception {
+        FakeAsyncClient client = new FakeAsyncClient();
+        final CompletableFuture<PutLogEventsResponse> failure = new CompletableFuture<PutLogEventsResponse>();
+        client.responses.add(failure);
+        CloudWatchLogbackAppenderV2<ILoggingEvent> appender = asyncAppender(client);
+        appender.start();
+
+        appender.doAppend(loggingEvent(1));
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                failure.completeExceptionally(CloudWatchLogsException.builder().message("Service unavailable").build());
+            }
+        };
+        thread.start();
+        // Waits for the outstanding request, then sends its events again.
+        appender.stop();
+        thread.join();
+        assertEquals(Arrays.asList("stream: 1", "stream: 1"), client.requests);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class EscapedStringCacheTest {
+
+    @Test
+    public void getAndPut() {
+        EscapedStringCache<String> cache = new EscapedStringCache<String>(4);
+        assertNull(cache.get("a\"b"));
+        cache.put("a\"b", "a\\\"b");
+        assertEquals("a\\\"b", cache.get("a\"b"));
+        assertEquals("a\\\"b", cache.get(new String("a\"b")));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+    }
+}
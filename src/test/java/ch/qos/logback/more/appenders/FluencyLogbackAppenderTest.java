@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.komamitsu.fluency.Fluency;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.more.appenders.marker.MapMarker;
+
+public class FluencyLogbackAppenderTest {
+
+    static class FakeFluency extends Fluency {
+        final List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+
+        FakeFluency() {
+            super(null, null);
+        }
+
+        @Override
+        public void emit(String tag, Map<String, Object> data) {
+            records.add(new HashMap<String, Object>(data));
+        }
+    }
+
+    @Test
+    public void fallBackToTheFilledFields() {
+        FakeFluency fluency = new FakeFluency();
+        FluencyLogbackAppender<ILoggingEvent> appender = new FluencyLogbackAppender<ILoggingEvent>();
+        appender.setContext(new LoggerContext());
+        appender.setStackTraceDedupWindow(60000);
+        appender.setDirectSerialization(true);
+        appender.setFluency(fluency);
+
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.ERROR);
+        event.setLoggerName("logger");
+        event.setThreadName("thread");
+        event.setMessage("message");
+        event.setTimeStamp(1);
+        event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("error")));
+        // The packer does not know Date, so Fluency serializes the record.
+        event.setMarker(new MapMarker("map", Collections.singletonMap("date", new Date(0))));
+        appender.append(event);
+
+        assertEquals(1, fluency.records.size());
+        Map<String, Object> record = fluency.records.get(0);
+        assertEquals("message", record.get("message"));
+        // The fields are not put again, which would have deduplicated the stack trace.
+        assertTrue(((String) record.get("throwable")).contains("IllegalStateException: error"));
+        assertEquals(Collections.singletonMap("date", new Date(0)), record.get("marker.map"));
+    }
+}
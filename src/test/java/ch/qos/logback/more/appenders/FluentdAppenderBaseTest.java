@@ -370,4 +370,38 @@ public class FluentdAppenderBaseTest {
 
         assertExpectedData(expected, appender, testEvent);
     }
+
+    /**
+     * Test createData with ILoggingEvent argument with Ignored MDC and Additional Fields
+     */
+    @Test
+    public void createDataILoggingEventWithIgnoredAdditionalFields() {
+        TestAppender<Object> appender = new TestAppender<>();
+        FluentdAppenderBase.Field field = new FluentdAppenderBase.Field();
+        field.setKey("app");
+        field.setValue("test");
+        appender.addAdditionalField(field);
+        field = new FluentdAppenderBase.Field();
+        field.setKey("host");
+        field.setValue("localhost");
+        appender.addAdditionalField(field);
+        appender.addIgnoredField("host");
+        appender.addIgnoredField("user");
+        appender.addIgnoredField("thread");
+
+        Map<String, String> mdc = new HashMap<>();
+        mdc.put("user", "alice");
+        mdc.put("request", "1");
+        TestEvent testEvent = new TestEvent("Test Message");
+        testEvent.setMdcPropertyMap(mdc);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("message", testEvent.getFormattedMessage());
+        expected.put("level", testEvent.getLevel().toString());
+        expected.put("logger", testEvent.getLoggerName());
+        expected.put("request", "1");
+        expected.put("app", "test");
+
+        assertExpectedData(expected, appender, testEvent);
+    }
 }
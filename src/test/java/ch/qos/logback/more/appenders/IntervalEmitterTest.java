@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventMapper;
+import ch.qos.logback.more.appenders.IntervalEmitter.EventSerializer;
+import ch.qos.logback.more.appenders.IntervalEmitter.IntervalAppender;
+import ch.qos.logback.more.appenders.IntervalEmitter.OverflowPolicy;
+
+public class IntervalEmitterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class IdentityMapper implements EventMapper<Integer, Integer> {
+        @Override
+        public Integer map(Integer event) {
+            return event;
+        }
+
+        @Override
+        public int sizeOf(Integer record) {
+            return 4;
+        }
+    }
+
+    static class IntegerSerializer implements EventSerializer<Integer> {
+        @Override
+        public void serialize(Integer record, DataOutput out) throws IOException {
+            out.writeInt(record);
+        }
+
+        @Override
+        public Integer deserialize(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    }
+
+    static class CollectingAppender implements IntervalAppender<Integer> {
+        final List<Integer> appended = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Thread> emittingThreads = Collections.synchronizedList(new ArrayList<Thread>());
+        volatile boolean available = true;
+
+        @Override
+        public boolean append(List<Integer> events) {
+            if (!available) {
+                return false;
+            }
+            emittingThreads.add(Thread.currentThread());
+            appended.addAll(events);
+            return true;
+        }
+    }
+
+    private IntervalEmitter<Integer, Integer> createEmitter(CollectingAppender appender, int capacity,
+            OverflowPolicy overflowPolicy) {
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        emitter.setCapacity(capacity);
+        emitter.setOverflowPolicy(overflowPolicy);
+        emitter.start();
+        return emitter;
+    }
+
+    @Test
+    public void appendConcurrently() throws InterruptedException {
+        final CollectingAppender appender = new CollectingAppender();
+        final IntervalEmitter<Integer, Integer> emitter = createEmitter(appender, 1 << 17, OverflowPolicy.DROP_NEWEST);
+
+        final int threadCount = 16;
+        final int eventsPerThread = 5000;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int base = t * eventsPerThread;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        emitter.append(base + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        emitter.emitForShutdown(10, 1);
+
+        List<Integer> appended = new ArrayList<Integer>(appender.appended);
+        Collections.sort(appended);
+        assertEquals(threadCount * eventsPerThread, appended.size());
+        for (int i = 0; i < appended.size(); i++) {
+            assertEquals(Integer.valueOf(i), appended.get(i));
+        }
+    }
+
+    @Test
+    public void dropNewest() {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter = createEmitter(appender, 4, OverflowPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 10; i++) {
+            emitter.append(i); // The first event is emitted immediately.
+        }
+        emitter.emitForShutdown(10, 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), appender.appended);
+    }
+
+    @Test
+    public void dropOldest() {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter = createEmitter(appender, 4, OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 10; i++) {
+            emitter.append(i);
+        }
+        emitter.emitForShutdown(10, 1);
+        assertEquals(Arrays.asList(1, 7, 8, 9, 10), appender.appended);
+    }
+
+    @Test
+    public void countDroppedEvents() {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        ContextAwareBase owner = new ContextAwareBase();
+        owner.setContext(new LoggerContext());
+        emitter.setOwner(owner);
+        emitter.setCapacity(4);
+        emitter.start();
+        for (int i = 1; i <= 10; i++) {
+            emitter.append(i);
+        }
+        emitter.emitForShutdown(10, 1);
+        assertEquals(5, emitter.getDroppedEvents());
+
+        int warnings = 0;
+        for (Status status : owner.getStatusManager().getCopyOfStatusList()) {
+            if (status.getLevel() == Status.WARN) {
+                warnings++;
+            }
+        }
+        assertEquals(1, warnings); // Rate-limited
+    }
+
+    @Test
+    public void dropOldestReleasesBatchBytes() {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        emitter.setCapacity(4);
+        emitter.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        emitter.setMaxBatchBytes(20);
+        emitter.start();
+        for (int i = 1; i <= 10; i++) {
+            emitter.append(i); // Never more than 4 events * 4 bytes are buffered.
+        }
+        assertEquals(Arrays.asList(1), appender.appended);
+        assertEquals(5, emitter.getDroppedEvents());
+        emitter.emitForShutdown(10, 1);
+        assertEquals(Arrays.asList(1, 7, 8, 9, 10), appender.appended);
+    }
+
+    @Test
+    public void blockUntilEmitted() throws InterruptedException {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(10, new IdentityMapper(), appender);
+        emitter.setCapacity(4);
+        emitter.setOverflowPolicy(OverflowPolicy.BLOCK);
+        emitter.setBlockTimeout(5000);
+        emitter.setAsyncEmit(true);
+        emitter.start();
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 1; i <= 50; i++) {
+            emitter.append(i); // Waits for the flusher once the buffer is full.
+            expected.add(i);
+        }
+        emitter.emitForShutdown(10, 1);
+        assertEquals(expected, appender.appended);
+        assertEquals(0, emitter.getDroppedEvents());
+    }
+
+    @Test
+    public void dropAfterBlockTimeout() {
+        CollectingAppender appender = new CollectingAppender();
+        appender.available = false;
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        emitter.setCapacity(4);
+        emitter.setOverflowPolicy(OverflowPolicy.BLOCK);
+        emitter.setBlockTimeout(100);
+        emitter.start();
+        // 4 events are pending after the failed emissions and 4 more fill the buffer.
+        for (int i = 1; i <= 8; i++) {
+            emitter.append(i);
+        }
+        assertEquals(0, emitter.getDroppedEvents());
+
+        long start = System.nanoTime();
+        emitter.append(9);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, emitter.getDroppedEvents());
+
+        appender.available = true;
+        emitter.emitForShutdown(10, 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), appender.appended);
+    }
+
+    @Test
+    public void asyncEmit() throws InterruptedException {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(20, new IdentityMapper(), appender);
+        emitter.setAsyncEmit(true);
+        emitter.start();
+        for (int i = 0; i < 100; i++) {
+            emitter.append(i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (appender.appended.size() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        emitter.emitForShutdown(10, 1);
+
+        assertEquals(100, appender.appended.size());
+        assertFalse(appender.emittingThreads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void emitWhenBatchIsFull() {
+        CollectingAppender appender = new CollectingAppender();
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        emitter.setMaxBatchEvents(3);
+        emitter.setMaxBatchBytes(20);
+        emitter.start();
+        for (int i = 1; i <= 9; i++) {
+            emitter.append(i); // The first event is emitted immediately.
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), appender.appended);
+        assertEquals(3, appender.emittingThreads.size());
+
+        emitter.setMaxBatchEvents(0);
+        emitter.append(10);
+        emitter.append(11);
+        emitter.append(12); // 5 events * 4 bytes
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12), appender.appended);
+        assertEquals(4, appender.emittingThreads.size());
+        emitter.emitForShutdown(10, 1);
+    }
+
+    private IntervalEmitter<Integer, Integer> createSpoolingEmitter(CollectingAppender appender, File dir) {
+        IntervalEmitter<Integer, Integer> emitter =
+                new IntervalEmitter<Integer, Integer>(60000, new IdentityMapper(), appender);
+        emitter.setMaxBatchEvents(1);
+        emitter.setSpool(dir.getPath(), "test", new IntegerSerializer(), 3, 0);
+        emitter.start();
+        return emitter;
+    }
+
+    @Test
+    public void spoolWhileDestinationIsDown() throws IOException {
+        File dir = tmp.newFolder();
+        CollectingAppender appender = new CollectingAppender();
+        appender.available = false;
+        IntervalEmitter<Integer, Integer> emitter = createSpoolingEmitter(appender, dir);
+        for (int i = 1; i <= 10; i++) {
+            emitter.append(i);
+        }
+        emitter.emitForShutdown(0, 1);
+        assertEquals(0, appender.appended.size());
+
+        // Replay after restart
+        appender.available = true;
+        emitter = createSpoolingEmitter(appender, dir);
+        emitter.append(11);
+        emitter.emitForShutdown(0, 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11), appender.appended);
+
+        // Nothing left
+        appender.appended.clear();
+        emitter = createSpoolingEmitter(appender, dir);
+        emitter.append(12);
+        emitter.emitForShutdown(0, 1);
+        assertEquals(Arrays.asList(12), appender.appended);
+    }
+
+    @Test
+    public void spoolUntilDestinationRecovers() throws IOException {
+        CollectingAppender appender = new CollectingAppender();
+        appender.available = false;
+        IntervalEmitter<Integer, Integer> emitter = createSpoolingEmitter(appender, tmp.newFolder());
+        for (int i = 1; i <= 5; i++) {
+            emitter.append(i);
+        }
+        appender.available = true;
+        emitter.emitForShutdown(0, 1);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), appender.appended);
+    }
+}
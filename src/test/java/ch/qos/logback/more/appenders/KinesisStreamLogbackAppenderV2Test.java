@@ -0,0 +1,264 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.more.appenders.AwsAppenderV2.AwsConfig;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisClient;
+import software.amazon.awssdk.services.kinesis.model.KinesisException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+public class KinesisStreamLogbackAppenderV2Test {
+    private static final int MIB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class FakeKinesis implements KinesisClient {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        // The partition keys of the entries which fail once.
+        final Set<String> failures = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> data = Collections.synchronizedList(new ArrayList<String>());
+        volatile RuntimeException error;
+        // The errors thrown for the requests which have an entry of the partition key.
+        final Map<String, Throwable> errors = new ConcurrentHashMap<String, Throwable>();
+
+        @Override
+        public String serviceName() {
+            return "kinesis";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public PutRecordsResponse putRecords(PutRecordsRequest request) {
+            if (error != null) {
+                throw error;
+            }
+            for (PutRecordsRequestEntry entry : request.records()) {
+                Throwable thrown = errors.remove(entry.partitionKey());
+                if (thrown instanceof Error) {
+                    throw (Error) thrown;
+                } else if (thrown != null) {
+                    throw (RuntimeException) thrown;
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>();
+            int failed = 0;
+            for (PutRecordsRequestEntry entry : request.records()) {
+                sb.append(sb.length() == 0 ? "" : " ").append(entry.partitionKey());
+                data.add(entry.data().asUtf8String().trim());
+                if (failures.remove(entry.partitionKey())) {
+                    results.add(PutRecordsResultEntry.builder().errorCode("ProvisionedThroughputExceededException").build());
+                    failed++;
+                } else {
+                    results.add(PutRecordsResultEntry.builder().sequenceNumber("1").shardId("0").build());
+                }
+            }
+            requests.add(sb.toString());
+            return PutRecordsResponse.builder().records(results).failedRecordCount(failed).build();
+        }
+    }
+
+    private static KinesisStreamLogbackAppenderV2 appender(FakeKinesis kinesis) {
+        KinesisStreamLogbackAppenderV2 appender = newAppender(kinesis);
+        appender.start();
+        return appender;
+    }
+
+    private static KinesisStreamLogbackAppenderV2 newAppender(FakeKinesis kinesis) {
+        KinesisStreamLogbackAppenderV2 appender = new KinesisStreamLogbackAppenderV2();
+        appender.setContext(new LoggerContext());
+        appender.setAwsConfig(new AwsConfig());
+        appender.setStreamName("stream");
+        appender.setMaxInFlightRequests(1);
+        appender.setRetryInitialDelay(1);
+        appender.setRetryMaxDelay(1);
+        appender.kinesis = kinesis;
+        appender.active = true;
+        return appender;
+    }
+
+    private static LoggingEvent loggingEvent(String message) {
+        LoggingEvent event = new LoggingEvent();
+        event.setLevel(Level.INFO);
+        event.setMessage(message);
+        return event;
+    }
+
+    private static PutRecordsRequestEntry entry(String partitionKey, int size) {
+        return PutRecordsRequestEntry.builder().partitionKey(partitionKey).data(SdkBytes.fromByteArray(new byte[size])).build();
+    }
+
+    private static List<PutRecordsRequestEntry> entries(int size, String... partitionKeys) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>();
+        for (String partitionKey : partitionKeys) {
+            entries.add(entry(partitionKey, size));
+        }
+        return entries;
+    }
+
+    private static List<Integer> sizes(List<List<PutRecordsRequestEntry>> batches) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<PutRecordsRequestEntry> batch : batches) {
+            sizes.add(batch.size());
+        }
+        return sizes;
+    }
+
+    @Test
+    public void splitByRecordCount() {
+        KinesisStreamLogbackAppenderV2 appender = appender(new FakeKinesis());
+        List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>();
+        for (int i = 0; i < 1001; i++) {
+            entries.add(entry("0", 1));
+        }
+        assertEquals(Arrays.asList(500, 500, 1), sizes(appender.new KinesisIntervalAppender().split(entries)));
+        appender.stop();
+    }
+
+    @Test
+    public void splitByBytes() {
+        KinesisStreamLogbackAppenderV2 appender = appender(new FakeKinesis());
+        // 5 MiB including the partition keys fit in a request.
+        List<PutRecordsRequestEntry> entries = entries(MIB - 1, "0", "1", "2", "3", "4", "5");
+        assertEquals(Arrays.asList(5, 1), sizes(appender.new KinesisIntervalAppender().split(entries)));
+
+        entries = entries(MIB - 2, "0", "1", "2", "3", "4");
+        entries.add(entry("5", 4));
+        assertEquals(Arrays.asList(6), sizes(appender.new KinesisIntervalAppender().split(entries)));
+
+        entries.set(5, entry("5", 5));
+        assertEquals(Arrays.asList(5, 1), sizes(appender.new KinesisIntervalAppender().split(entries)));
+        appender.stop();
+    }
+
+    @Test
+    public void dropTooLargeRecords() {
+        KinesisStreamLogbackAppenderV2 appender = appender(new FakeKinesis());
+        // 1 MiB including the partition key fits in a record.
+        List<PutRecordsRequestEntry> entries = Arrays.asList(entry("0", MIB), entry("1", MIB - 1), entry("22", MIB - 1));
+        List<List<PutRecordsRequestEntry>> batches = appender.new KinesisIntervalAppender().split(entries);
+        assertEquals(Arrays.asList(1), sizes(batches));
+        assertEquals("1", batches.get(0).get(0).partitionKey());
+        appender.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void retryOnlyFailedEntries() {
+        FakeKinesis kinesis = new FakeKinesis();
+        kinesis.failures.add("b");
+        KinesisStreamLogbackAppenderV2 appender = appender(kinesis);
+
+        List<PutRecordsRequestEntry> entries = entries(1, "a", "b", "c", "d");
+        // The partial failure is retried in the background.
+        assertTrue(appender.new KinesisIntervalAppender().append(entries));
+        appender.stop();
+        assertEquals(Arrays.asList("a b c d", "b"), kinesis.requests);
+    }
+
+    @Test(timeout = 10000)
+    public void requeueOnlyFailedBatches() {
+        FakeKinesis kinesis = new FakeKinesis();
+        kinesis.failures.add("f");
+        KinesisStreamLogbackAppenderV2 appender = appender(kinesis);
+
+        List<PutRecordsRequestEntry> entries = entries(MIB - 1, "a", "b", "c", "d", "e", "f");
+        // The batch which has entirely failed is left to the emitter.
+        assertFalse(appender.new KinesisIntervalAppender().append(entries));
+        assertEquals(1, entries.size());
+        assertEquals("f", entries.get(0).partitionKey());
+        assertEquals(Arrays.asList("a b c d e", "f"), kinesis.requests);
+        appender.stop();
+    }
+
+    private void assertRequeueFailedBatch(Throwable thrown) {
+        FakeKinesis kinesis = new FakeKinesis();
+        kinesis.errors.put("f", thrown);
+        KinesisStreamLogbackAppenderV2 appender = newAppender(kinesis);
+        appender.setMaxInFlightRequests(2);
+        appender.start();
+
+        List<PutRecordsRequestEntry> entries = entries(MIB - 1, "a", "b", "c", "d", "e", "f");
+        assertFalse(appender.new KinesisIntervalAppender().append(entries));
+        assertEquals(1, entries.size());
+        assertEquals("f", entries.get(0).partitionKey());
+        appender.stop();
+    }
+
+    @Test(timeout = 10000)
+    public void requeueBatchWhenPutThrows() {
+        assertRequeueFailedBatch(KinesisException.builder().message("Service unavailable").build());
+    }
+
+    @Test(timeout = 10000)
+    public void requeueBatchWhenPutFails() {
+        // Not caught by put, so the future of the batch fails.
+        assertRequeueFailedBatch(new AssertionError("failed"));
+    }
+
+    @Test(timeout = 10000)
+    public void spoolWhileKinesisIsDown() throws IOException {
+        FakeKinesis kinesis = new FakeKinesis();
+        kinesis.error = KinesisException.builder().message("Service unavailable").build();
+        File dir = tmp.newFolder();
+        KinesisStreamLogbackAppenderV2 appender = newAppender(kinesis);
+        appender.setSpoolDir(dir.getPath());
+        appender.setSpoolHighWaterMark(1);
+        appender.setEmitInterval(60000); // Failed emissions are retried at every append until one succeeds.
+        appender.start();
+
+        for (int i = 1; i <= 3; i++) {
+            appender.doAppend(loggingEvent(String.valueOf(i)));
+        }
+        assertTrue(kinesis.data.isEmpty());
+        long spooled = 0;
+        for (File file : dir.listFiles()) {
+            spooled += file.getName().endsWith(".spool") ? file.length() : 0;
+        }
+        assertTrue(spooled > 0);
+
+        kinesis.error = null;
+        appender.stop();
+        assertEquals(Arrays.asList("[INFO] 1", "[INFO] 2", "[INFO] 3"), kinesis.data);
+    }
+}
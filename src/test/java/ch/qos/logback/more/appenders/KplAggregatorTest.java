@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KplAggregatorTest {
+
+    private static ByteBuffer data(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void aggregate() throws Exception {
+        KplAggregator aggregator = new KplAggregator(1024);
+        assertTrue(aggregator.add("a", null, data("x")));
+        assertTrue(aggregator.add("b", null, data("yz")));
+        assertTrue(aggregator.add("a", null, data("w")));
+        assertEquals(3, aggregator.count());
+        assertEquals("a", aggregator.partitionKey());
+        String explicitHashKey = KplAggregator.hashKeyOf("a");
+        assertEquals(explicitHashKey, aggregator.explicitHashKey());
+
+        byte[] record = aggregator.build();
+        byte[] message = concat(new byte[] {
+                0x0A, 0x01, 'a', // partition_key_table
+                0x0A, 0x01, 'b',
+                0x12, (byte) explicitHashKey.length()}, // explicit_hash_key_table
+                explicitHashKey.getBytes(StandardCharsets.US_ASCII), new byte[] {
+                0x1A, 0x07, 0x08, 0x00, 0x10, 0x00, 0x1A, 0x01, 'x', // records
+                0x1A, 0x08, 0x08, 0x01, 0x10, 0x00, 0x1A, 0x02, 'y', 'z',
+                0x1A, 0x07, 0x08, 0x00, 0x10, 0x00, 0x1A, 0x01, 'w'});
+        assertArrayEquals(new byte[] {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2},
+                Arrays.copyOfRange(record, 0, 4));
+        assertArrayEquals(message, Arrays.copyOfRange(record, 4, 4 + message.length));
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest(message),
+                Arrays.copyOfRange(record, 4 + message.length, record.length));
+        assertTrue(KplAggregator.isAggregated(ByteBuffer.wrap(record)));
+        assertFalse(KplAggregator.isAggregated(data("x")));
+        assertEquals(0, aggregator.count());
+    }
+
+    @Test
+    public void stampOuterExplicitHashKey() {
+        // The records of the other keys would be dropped by KCL if they kept their own hash keys.
+        KplAggregator aggregator = new KplAggregator(1024);
+        assertTrue(aggregator.add("a", "100", data("x")));
+        assertTrue(aggregator.add("b", "200", data("y")));
+        assertTrue(aggregator.add("c", null, data("z")));
+        assertEquals("a", aggregator.partitionKey());
+        assertEquals("100", aggregator.explicitHashKey());
+
+        byte[] record = aggregator.build();
+        byte[] message = {
+                0x0A, 0x01, 'a', // partition_key_table
+                0x0A, 0x01, 'b',
+                0x0A, 0x01, 'c',
+                0x12, 0x03, '1', '0', '0', // explicit_hash_key_table
+                0x1A, 0x07, 0x08, 0x00, 0x10, 0x00, 0x1A, 0x01, 'x', // records
+                0x1A, 0x07, 0x08, 0x01, 0x10, 0x00, 0x1A, 0x01, 'y',
+                0x1A, 0x07, 0x08, 0x02, 0x10, 0x00, 0x1A, 0x01, 'z'};
+        assertArrayEquals(message, Arrays.copyOfRange(record, 4, record.length - 16));
+    }
+
+    @Test
+    public void hashKeyOf() {
+        // MD5("a")
+        assertEquals(new BigInteger("0cc175b9c0f1b6a831c399e269772661", 16).toString(), KplAggregator.hashKeyOf("a"));
+    }
+
+    @Test
+    public void limitSize() {
+        // magic(4) + key(3) + hash key(3) + record(2 + 2 + 2 + 2 + 10) + md5(16) + outer key(1) = 45
+        KplAggregator aggregator = new KplAggregator(45);
+        assertTrue(aggregator.add("a", "1", data("0123456789")));
+        assertFalse(aggregator.add("a", "1", data("0")));
+        assertEquals(1, aggregator.count());
+        assertEquals(44, aggregator.build().length);
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+public class RecordPackerTest {
+
+    @Test
+    public void pack() throws Exception {
+        RecordPacker packer = RecordPacker.get();
+        Map<String, Object> fields = packer.fields();
+        fields.put("message", new byte[] {1, 2});
+        fields.put("level", "INFO");
+        fields.put("marker", Collections.singletonMap("count", 3));
+        fields.put("tags", Arrays.asList("a", null));
+        fields.put("level", "WARN");
+        assertTrue(packer.pack(Collections.singleton("level")));
+
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(packer.array(), 0, packer.size());
+        assertEquals(4, unpacker.unpackMapHeader());
+        assertEquals("message", unpacker.unpackString());
+        assertArrayEquals(new byte[] {1, 2}, unpacker.readPayload(unpacker.unpackBinaryHeader()));
+        assertEquals("level", unpacker.unpackString());
+        assertEquals("WARN", unpacker.unpackString());
+        assertEquals("marker", unpacker.unpackString());
+        assertEquals(1, unpacker.unpackMapHeader());
+        assertEquals("count", unpacker.unpackString());
+        assertEquals(3, unpacker.unpackInt());
+        assertEquals("tags", unpacker.unpackString());
+        assertEquals(2, unpacker.unpackArrayHeader());
+        assertEquals("a", unpacker.unpackString());
+        unpacker.unpackNil();
+        assertFalse(unpacker.hasNext());
+    }
+
+    @Test
+    public void unknownValue() throws Exception {
+        RecordPacker packer = RecordPacker.get();
+        packer.fields().put("value", new Object());
+        assertFalse(packer.pack());
+    }
+}
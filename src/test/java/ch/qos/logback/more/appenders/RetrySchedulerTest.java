@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.more.appenders.RetryScheduler.RetryTarget;
+
+public class RetrySchedulerTest {
+
+    static class FailingTarget implements RetryTarget<Integer> {
+        final List<List<Integer>> sent = Collections.synchronizedList(new ArrayList<List<Integer>>());
+        final List<Integer> givenUp = Collections.synchronizedList(new ArrayList<Integer>());
+        final int failures;
+
+        FailingTarget(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public List<Integer> send(List<Integer> records) {
+            sent.add(new ArrayList<Integer>(records));
+            // Fail the first record for the first attempts.
+            return sent.size() <= failures ? records.subList(0, 1) : Collections.<Integer>emptyList();
+        }
+
+        @Override
+        public void giveUp(List<Integer> records) {
+            givenUp.addAll(records);
+        }
+    }
+
+    @Test
+    public void retryUntilSent() {
+        FailingTarget target = new FailingTarget(2);
+        RetryScheduler<Integer> scheduler = new RetryScheduler<Integer>(target, 3, 1, 10, 100);
+        scheduler.retry(Arrays.asList(1, 2));
+        scheduler.shutdown(5000);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(1), Arrays.asList(1)), target.sent);
+        assertEquals(0, target.givenUp.size());
+    }
+
+    @Test
+    public void giveUpAfterMaxRetries() {
+        FailingTarget target = new FailingTarget(Integer.MAX_VALUE);
+        RetryScheduler<Integer> scheduler = new RetryScheduler<Integer>(target, 2, 1, 10, 100);
+        scheduler.retry(Arrays.asList(1, 2));
+        scheduler.shutdown(5000);
+
+        assertEquals(2, target.sent.size());
+        assertEquals(Arrays.asList(1), target.givenUp);
+    }
+
+    @Test
+    public void giveUpOverBudget() {
+        FailingTarget target = new FailingTarget(0);
+        RetryScheduler<Integer> scheduler = new RetryScheduler<Integer>(target, 3, 1000, 1000, 2);
+        scheduler.retry(Arrays.asList(1, 2));
+        scheduler.retry(Arrays.asList(3));
+        scheduler.shutdown(5000);
+
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), target.sent);
+        assertEquals(Arrays.asList(3), target.givenUp);
+    }
+
+    @Test
+    public void warnTheErrorOfTheLastRetry() {
+        final RuntimeException error = new RuntimeException("Service unavailable");
+        FailingTarget target = new FailingTarget(0) {
+            @Override
+            public List<Integer> send(List<Integer> records) {
+                super.send(records);
+                throw error;
+            }
+        };
+        ContextAwareBase owner = new ContextAwareBase();
+        owner.setContext(new LoggerContext());
+        RetryScheduler<Integer> scheduler = new RetryScheduler<Integer>(target, 2, 1, 10, 100);
+        scheduler.setOwner(owner);
+        scheduler.retry(Arrays.asList(1, 2));
+        scheduler.shutdown(5000);
+
+        assertEquals(Arrays.asList(1, 2), target.givenUp);
+        List<Status> statuses = owner.getContext().getStatusManager().getCopyOfStatusList();
+        assertEquals(1, statuses.size());
+        assertEquals(Status.WARN, statuses.get(0).getLevel());
+        assertSame(error, statuses.get(0).getThrowable());
+    }
+}
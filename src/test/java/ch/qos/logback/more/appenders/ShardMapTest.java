@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import ch.qos.logback.core.status.Status;
+import ch.qos.logback.more.appenders.ShardMap.ShardLister;
+
+public class ShardMapTest {
+
+    @Test
+    public void roundRobin() {
+        final List<String> shards = Arrays.asList("0", "100", "200");
+        ShardMap shardMap = new ShardMap(new ShardLister() {
+            @Override
+            public List<String> listOpenShards() {
+                return shards;
+            }
+        }, 60000);
+        assertNull(shardMap.nextExplicitHashKey());
+
+        shardMap.refresh();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < 300; i++) {
+            String key = shardMap.nextExplicitHashKey();
+            counts.put(key, counts.containsKey(key) ? counts.get(key) + 1 : 1);
+        }
+        assertEquals(Integer.valueOf(100), counts.get("0"));
+        assertEquals(Integer.valueOf(100), counts.get("100"));
+        assertEquals(Integer.valueOf(100), counts.get("200"));
+    }
+
+    @Test
+    public void warnOnceWhileListingFails() {
+        final boolean[] failing = {true};
+        ShardMap shardMap = new ShardMap(new ShardLister() {
+            @Override
+            public List<String> listOpenShards() {
+                if (failing[0]) {
+                    throw new IllegalStateException("ListShards failed");
+                }
+                return Arrays.asList("0");
+            }
+        }, 60000);
+        ContextAwareBase owner = new ContextAwareBase();
+        owner.setContext(new LoggerContext());
+        shardMap.setOwner(owner);
+
+        assertFalse(shardMap.refresh());
+        assertFalse(shardMap.refresh());
+        assertEquals(1, owner.getStatusManager().getCount());
+        assertEquals(Status.WARN, owner.getStatusManager().getCopyOfStatusList().get(0).getLevel());
+        assertFalse(shardMap.isLoaded());
+
+        failing[0] = false;
+        assertTrue(shardMap.refresh());
+        assertTrue(shardMap.isLoaded());
+
+        failing[0] = true;
+        assertFalse(shardMap.refresh());
+        assertEquals(2, owner.getStatusManager().getCount());
+        assertTrue(shardMap.isLoaded()); // The last shards are kept.
+    }
+}
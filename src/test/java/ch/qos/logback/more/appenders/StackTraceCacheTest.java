@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+public class StackTraceCacheTest {
+
+    private static Exception exception(String message) {
+        return new IllegalStateException(message, new RuntimeException("cause"));
+    }
+
+    @Test
+    public void sameStackTrace() {
+        StackTraceCache cache = new StackTraceCache(2);
+        Exception[] exceptions = new Exception[2];
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptions[i] = exception("failed");
+        }
+        StackTraceCache.Entry entry = cache.get(new ThrowableProxy(exceptions[0]));
+        entry.setRendered("rendered");
+        assertSame(entry, cache.get(new ThrowableProxy(exceptions[1])));
+        assertNotSame(entry, cache.get(new ThrowableProxy(exception("other"))));
+        assertEquals(2, cache.size());
+
+        cache.get(new ThrowableProxy(new IllegalArgumentException()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void repeated() {
+        StackTraceCache.Entry entry = new StackTraceCache(1).get(new ThrowableProxy(exception("failed")));
+        assertFalse(entry.isRepeated(1000, 100));
+        assertTrue(entry.isRepeated(1099, 100));
+        assertFalse(entry.isRepeated(1100, 100));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        StackTraceCache cache = new StackTraceCache(2);
+        Exception a = exception("a");
+        Exception b = exception("b");
+        StackTraceCache.Entry entryA = cache.get(new ThrowableProxy(a));
+        StackTraceCache.Entry entryB = cache.get(new ThrowableProxy(b));
+        cache.get(new ThrowableProxy(a));
+        cache.get(new ThrowableProxy(exception("c")));
+        assertEquals(2, cache.size());
+        assertSame(entryA, cache.get(new ThrowableProxy(a)));
+        assertNotSame(entryB, cache.get(new ThrowableProxy(b)));
+    }
+
+    @Test
+    public void differentCause() {
+        StackTraceCache cache = new StackTraceCache(2);
+        Exception[] exceptions = new Exception[2];
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptions[i] = new IllegalStateException("failed", i == 0 ? null : new RuntimeException("cause"));
+        }
+        assertNotSame(cache.get(new ThrowableProxy(exceptions[0])), cache.get(new ThrowableProxy(exceptions[1])));
+    }
+}
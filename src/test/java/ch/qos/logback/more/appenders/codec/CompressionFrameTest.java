@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2018 sndyuk <sanada@sndyuk.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package ch.qos.logback.more.appenders.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class CompressionFrameTest {
+
+    @Test
+    public void gzip() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("{\"level\":\"INFO\",\"message\":\"hello ").append(i).append("\"}\n");
+        }
+        byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+        GzipCodec codec = new GzipCodec();
+
+        byte[] compressed = CompressionFrame.compress(codec, ByteBuffer.wrap(data));
+        assertTrue(compressed.length < data.length);
+        assertTrue(CompressionFrame.isCompressed(ByteBuffer.wrap(compressed)));
+        assertEquals(GzipCodec.ID, CompressionFrame.codecId(ByteBuffer.wrap(compressed)));
+        assertFalse(CompressionFrame.isCompressed(ByteBuffer.wrap(data)));
+        assertArrayEquals(data, CompressionFrame.decompress(codec, compressed));
+    }
+}
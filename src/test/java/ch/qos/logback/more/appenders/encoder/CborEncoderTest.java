@@ -0,0 +1,58 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class CborEncoderTest {
+
+    private LoggingEvent event() {
+        LoggerContext context = new LoggerContext();
+        return new LoggingEvent("test", context.getLogger("test"), Level.INFO, "message",
+                new IllegalStateException("failed"), null);
+    }
+
+    @Test
+    public void fieldIds() throws Exception {
+        CborEncoder encoder = new CborEncoder();
+        encoder.start();
+        LoggingEvent event = event();
+        byte[] cbor = encoder.encode(event);
+
+        JsonNode node = new ObjectMapper(new CBORFactory()).readTree(cbor);
+        assertEquals("INFO", node.get(String.valueOf(JacksonEncoderBase.LEVEL)).asText());
+        assertEquals("message", node.get(String.valueOf(JacksonEncoderBase.MESSAGE)).asText());
+
+        StructuredJsonEncoder jsonEncoder = new StructuredJsonEncoder();
+        jsonEncoder.start();
+        assertTrue(cbor.length < jsonEncoder.encode(event).length * 0.7);
+    }
+
+    @Test
+    public void fieldNames() throws Exception {
+        CborEncoder encoder = new CborEncoder();
+        encoder.setFieldIds(false);
+        encoder.start();
+        JsonNode node = new ObjectMapper(new CBORFactory()).readTree(encoder.encode(event()));
+        assertEquals("INFO", node.get("level").asText());
+    }
+
+    @Test
+    public void messagePack() throws Exception {
+        MessagePackEncoder encoder = new MessagePackEncoder();
+        encoder.start();
+        JsonNode node = new ObjectMapper(new MessagePackFactory()).readTree(encoder.encode(event()));
+        assertEquals("INFO", node.get("level").asText());
+        assertEquals("failed", node.get("exception").get("message").asText());
+    }
+}
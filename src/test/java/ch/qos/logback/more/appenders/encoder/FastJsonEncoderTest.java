@@ -1,15 +1,27 @@
 package ch.qos.logback.more.appenders.encoder;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import ch.qos.logback.core.pattern.Converter;
+import ch.qos.logback.core.pattern.LiteralConverter;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class FastJsonEncoderTest {
     private static ObjectMapper objectMapper = new ObjectMapper();
@@ -58,6 +70,8 @@ public class FastJsonEncoderTest {
         "\r\n",
         "\\",
         "\\\"\\\"",
+        "\u0000\u0001\u001f\b\f",
+        "quote \" in \\ the middle\u0007 with\ttabs",
         "2020-10-03T23:12:43+00:00       debug.logback   {\"msg\":\"23:12:43.615 [HikariPool-1 housekeeper] WARN  c.z.h.p.HikariPool#779 HikariPool-1 - Thread starvation or clock leap detected (housekeeper delta=2h24s477ms).\",\"caller\":\"Caller+0\\t at com.zaxxer.hikari@3.4.2/com.zaxxer.hikari.pool.HikariPool$HouseKeeper.run(HikariPool.java:779)\\nCaller+1\\t at java.base/java.util.concurrent.Executors$RunnableAdapter.call(Executors.java:515)\\nCaller+2\\t at java.base/java.util.concurrent.FutureTask.runAndReset$$$capture(FutureTask.java:305)\\nCaller+3\\t at java.base/java.util.concurrent.FutureTask.runAndReset(FutureTask.java)\\nCaller+4\\t at java.base/java.util.concurrent.ScheduledThreadPoolExecutor$ScheduledFutureTask.run(ScheduledThreadPoolExecutor.java:305)\\n\",\"level\":\"WARN\",\"logger\":\"com.zaxxer.hikari.pool.HikariPool\",\"foo\":\"bar\",\"thread\":\"HikariPool-1 housekeeper\",\"foo2\":\"bar2\"}",
     };
 
@@ -69,4 +83,103 @@ public class FastJsonEncoderTest {
             assertEquals(pattern1[i], message.getMessage());
         }
     }
+
+    @Test
+    public void stacktrace() throws IOException {
+        FastJsonEncoder encoder = createEncoder();
+        LoggingEvent event = new LoggingEvent();
+        event.setMessage("failed");
+        event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("\"broken\"\n")));
+        for (int i = 0; i < 2; i++) {
+            JsonNode json = objectMapper.readTree(new String(encoder.encode(event)));
+            assertEquals("failed", json.get("message").asText());
+            assertTrue(json.get("stacktrace").asText().startsWith("java.lang.IllegalStateException: \"broken\"\n"));
+        }
+    }
+
+    @Test
+    public void encodeTo() {
+        FastJsonEncoder encoder = createEncoder();
+        LoggingEvent event = new LoggingEvent();
+        event.setMessage("\u3042\"\n" + pattern1[pattern1.length - 1]);
+        ByteBuffer buffer = encoder.encodeTo(event, ByteBuffer.allocate(4));
+        assertArrayEquals(encoder.encode(event),
+                Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.limit()));
+    }
+
+    @Test
+    public void replaceRange() {
+        FastJsonEncoder encoder = createEncoder();
+        StringBuilder buff = new StringBuilder("\"a\"b\n\"c");
+        // Only the range is escaped, the characters after it are kept.
+        encoder.replace(buff, 1, 5);
+        assertEquals("\"a\\\"b\\n\"c", buff.toString());
+    }
+
+    @Test
+    public void compressSpace() {
+        assertEquals("{\"message\":\"", FastJsonEncoder.compressSpace("{\n  \"message\": \""));
+        assertEquals("\",\"level\":\"a b\"}", FastJsonEncoder.compressSpace("\",\n  \"level\": \"a b\"\n}"));
+
+        FastJsonEncoder encoder = new FastJsonEncoder();
+        encoder.setCompressSpace(true);
+        encoder.setPattern("{\n  \"message\": \"%msg\",\n  \"fixed\": \"a  b\"\n}");
+        encoder.setContext(new LoggerContext());
+        encoder.start();
+        LoggingEvent event = new LoggingEvent();
+        event.setMessage("x  y");
+        assertEquals("{\"message\":\"x  y\",\"fixed\":\"a  b\"}", new String(encoder.encode(event)));
+    }
+
+    static class RecordingEncoder extends FastJsonEncoder {
+        final List<String> written = new ArrayList<String>();
+
+        @Override
+        protected Writer getWriter() {
+            final Writer writer = super.getWriter();
+            return new Writer() {
+                @Override
+                public void write(Converter<ILoggingEvent> converter, ILoggingEvent event, StringBuilder buf) {
+                    written.add(converter instanceof LiteralConverter ? converter.convert(event) : "%");
+                    writer.write(converter, event, buf);
+                }
+            };
+        }
+    }
+
+    @Test
+    public void writeUnchangedLiterals() {
+        for (boolean compressSpace : new boolean[] {false, true}) {
+            RecordingEncoder encoder = new RecordingEncoder();
+            encoder.setCompressSpace(compressSpace);
+            encoder.setPattern("{\"message\": \"%msg\"}");
+            encoder.setContext(new LoggerContext());
+            encoder.start();
+            LoggingEvent event = new LoggingEvent();
+            event.setMessage("x");
+            encoder.encode(event);
+            // The literal minified at start is appended without the writer. The layout appends the throwable.
+            assertEquals(compressSpace ? Arrays.asList("%", "\"}", "%")
+                    : Arrays.asList("{\"message\": \"", "%", "\"}", "%"), encoder.written);
+        }
+    }
+
+    @Test
+    public void escapedStringCache() throws IOException {
+        FastJsonEncoder encoder = new FastJsonEncoder();
+        encoder.setPattern("{\"logger\": \"%logger\", \"short\": \"%logger{0}\", \"level\": \"%level\"}");
+        encoder.setContext(new LoggerContext());
+        encoder.start();
+        LoggingEvent event = new LoggingEvent();
+        event.setLoggerName("a.\"quoted\"");
+        event.setLevel(Level.INFO);
+        for (int i = 0; i < 2; i++) {
+            JsonNode json = objectMapper.readTree(new String(encoder.encode(event)));
+            assertEquals("a.\"quoted\"", json.get("logger").asText());
+            assertEquals("\"quoted\"", json.get("short").asText());
+            assertEquals("INFO", json.get("level").asText());
+        }
+        assertEquals(3, encoder.getEscapedStringCacheHits());
+        assertEquals(3, encoder.getEscapedStringCacheMisses());
+    }
 }
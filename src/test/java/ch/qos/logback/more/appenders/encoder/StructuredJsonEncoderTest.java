@@ -0,0 +1,80 @@
+package ch.qos.logback.more.appenders.encoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.CoreConstants;
+import ch.qos.logback.more.appenders.marker.MapMarker;
+
+public class StructuredJsonEncoderTest {
+    private static ObjectMapper objectMapper = new ObjectMapper();
+
+    private LoggingEvent event(String message, Throwable throwable) {
+        LoggerContext context = new LoggerContext();
+        Logger logger = context.getLogger("test");
+        MDC.put("user", "alice");
+        try {
+            LoggingEvent event = new LoggingEvent("test", logger, Level.WARN, message, throwable, null);
+            event.setMarker(new MapMarker("request", Collections.singletonMap("id", 1)));
+            // The MDC is copied on the first access.
+            event.getMDCPropertyMap();
+            return event;
+        } finally {
+            MDC.remove("user");
+        }
+    }
+
+    @Test
+    public void encode() throws Exception {
+        StructuredJsonEncoder encoder = new StructuredJsonEncoder();
+        encoder.start();
+        LoggingEvent event = event("\"quoted\"\n\u0001", new IllegalStateException("failed", new RuntimeException("cause")));
+
+        JsonNode json = objectMapper.readTree(encoder.encode(event));
+        assertEquals(event.getTimeStamp(), json.get("timestamp").asLong());
+        assertEquals("WARN", json.get("level").asText());
+        assertEquals("test", json.get("logger").asText());
+        assertEquals("\"quoted\"\n\u0001", json.get("message").asText());
+        assertEquals("alice", json.get("mdc").get("user").asText());
+        assertEquals(1, json.get("markers").get("request").get("id").asInt());
+        JsonNode exception = json.get("exception");
+        assertEquals("java.lang.IllegalStateException", exception.get("class").asText());
+        assertEquals("encode", exception.get("frames").get(0).get("method").asText());
+        assertEquals("cause", exception.get("cause").get("message").asText());
+        assertTrue(exception.get("cause").get("commonFrames").asInt() > 0);
+
+        ByteBuffer buffer = encoder.encodeTo(event, ByteBuffer.allocate(8));
+        assertArrayEquals(encoder.encode(event), Arrays.copyOfRange(buffer.array(), 0, buffer.limit()));
+    }
+
+    @Test
+    public void lineSeparator() {
+        StructuredJsonEncoder encoder = new StructuredJsonEncoder();
+        encoder.start();
+        LoggingEvent event = event("line", null);
+        String json = new String(encoder.encode(event), StandardCharsets.UTF_8);
+        assertTrue(json.endsWith("}" + CoreConstants.LINE_SEPARATOR));
+
+        encoder.setLineSeparator(false);
+        json = new String(encoder.encode(event), StandardCharsets.UTF_8);
+        assertTrue(json.endsWith("}"));
+        assertFalse(json.contains(CoreConstants.LINE_SEPARATOR));
+    }
+}